@@ -0,0 +1,317 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+// archives as read by every file system of the provider: each central directory, its entry urls,
+// its names split into segments and its multi-release resolution exist once however many file
+// systems mount the archive, and are dropped when the last of them closes. This is all of the
+// index that is shared; the path -> view maps stay with each file system, since their paths,
+// overlay winners, buffers and pending directories belong to it even for the same urls
+class ResourceArchives {
+
+	static final String VERSIONS = "META-INF/versions/";
+
+	private final Map<String, Archive>	archives	= new ConcurrentHashMap<>();
+	// central directories read so far
+	final AtomicLong					reads		= new AtomicLong();
+
+	// read again when a local archive changed on disk, file systems still holding the old one keep it;
+	// checking and reading happen outside the map, only the installing is done under its lock. Reads
+	// wait for permits of the file system asking, see ResourceScheduler
+	Archive acquire(String spec, ResourceFileSystem fileSystem) {
+		Archive fresh = null;
+
+		while (true) {
+			Archive current = archives.get(spec);
+
+			if (current != null && current.isCurrent()) {
+				Archive referenced = archives.computeIfPresent(spec, (key, existing) -> {
+					if (existing == current) {
+						existing.references++;
+					}
+					return existing;
+				});
+				if (referenced == current) {
+					return current;
+				}
+				continue;
+			}
+
+			if (fresh == null || !fresh.isCurrent()) {
+				fresh = read(spec, fileSystem);
+			}
+
+			Archive candidate = fresh;
+			Archive installed = archives.compute(spec, (key, existing) -> {
+				if (existing != current) {
+					return existing;
+				}
+				candidate.references++;
+				return candidate;
+			});
+			if (installed == candidate) {
+				return candidate;
+			}
+		}
+	}
+
+	private Archive read(String spec, ResourceFileSystem fileSystem) {
+		reads.incrementAndGet();
+		return new Archive(spec, fileSystem);
+	}
+
+	void release(Archive archive) {
+		archives.computeIfPresent(archive.spec, (key, current) -> {
+			if (current != archive) {
+				return current;
+			}
+			return (--current.references == 0) ? null : current;
+		});
+	}
+
+	Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("open", archives.size());
+		stats.put("reads", reads.get());
+		return stats;
+	}
+
+	// file systems currently holding the archive, 0 once none does
+	int references(String spec) {
+		Archive archive = archives.get(spec);
+		return (archive == null) ? 0 : archive.references;
+	}
+
+	static class Archive {
+
+		final String							spec;
+		final URL								url;
+		// size and modification time of a local archive, -1 for any other
+		final long								size;
+		final long								lastModified;
+		final Map<String, ZipEntry>				entries;
+		private final Map<String, String[]>		segments	= new ConcurrentHashMap<>();
+		private final Map<String, URL>			urls		= new ConcurrentHashMap<>();
+		// target release -> logical name -> winning entry, empty when not multi-release
+		private final Map<Integer, Map<String, ZipEntry>>	releases	= new ConcurrentHashMap<>();
+		// guarded by the map entry, see acquire and release
+		int										references;
+
+		Archive(String spec, ResourceFileSystem fileSystem) {
+			this.spec = spec;
+
+			try {
+				this.url = new URL(spec);
+
+				Path local = local(url);
+				if (local != null) {
+					BasicFileAttributes attributes = Files.readAttributes(local, BasicFileAttributes.class);
+					this.size = attributes.size();
+					this.lastModified = attributes.lastModifiedTime()
+						.toMillis();
+				}
+				else {
+					this.size = -1;
+					this.lastModified = -1;
+				}
+
+				this.entries = read(url, local, fileSystem);
+			}
+			catch (IOException e) {
+				throw ResourceFS.thro(e);
+			}
+		}
+
+		boolean isCurrent() {
+			Path local = local(url);
+			if (local == null) {
+				return true;
+			}
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(local, BasicFileAttributes.class);
+				return attributes.size() == size && attributes.lastModifiedTime()
+					.toMillis() == lastModified;
+			}
+			catch (IOException e) {
+				return false;
+			}
+		}
+
+		String[] segments(String name) {
+			return segments.computeIfAbsent(name, ResourcePath::split);
+		}
+
+		URL url(ZipEntry entry) {
+			return urls.computeIfAbsent(entry.getName(), name -> {
+				try {
+					return new URL("jar:" + spec + "!/" + name);
+				}
+				catch (MalformedURLException e) {
+					throw ResourceFS.thro(e);
+				}
+			});
+		}
+
+		// logical name -> entry of the highest version directory not above the target release,
+		// so lookups never have to probe META-INF/versions/N themselves; resolved outside the map,
+		// since reading the manifest may wait for a permit
+		Map<String, ZipEntry> resolved(int release, ResourceFileSystem fileSystem) {
+			Map<String, ZipEntry> resolved = releases.get(release);
+			if (resolved == null) {
+				resolved = resolve(release, fileSystem);
+				Map<String, ZipEntry> existing = releases.putIfAbsent(release, resolved);
+				if (existing != null) {
+					resolved = existing;
+				}
+			}
+			return resolved;
+		}
+
+		private Map<String, ZipEntry> resolve(int release, ResourceFileSystem fileSystem) {
+			if (entries.keySet()
+				.stream()
+				.noneMatch(name -> name.startsWith(VERSIONS)) || !isMultiRelease(fileSystem)) {
+				return Collections.emptyMap();
+			}
+
+			Map<String, ZipEntry> resolved = new HashMap<>();
+			Map<String, Integer> versions = new HashMap<>();
+
+			for (ZipEntry entry : entries.values()) {
+				String name = entry.getName();
+				if (entry.isDirectory() || !name.startsWith(VERSIONS)) {
+					continue;
+				}
+
+				int slash = name.indexOf('/', VERSIONS.length());
+				if (slash < 0) {
+					continue;
+				}
+
+				int version;
+				try {
+					version = Integer.parseInt(name.substring(VERSIONS.length(), slash));
+				}
+				catch (NumberFormatException e) {
+					continue;
+				}
+
+				String logical = name.substring(slash + 1);
+				if (version < 9 || version > release || logical.isEmpty() || versions.getOrDefault(logical, 0) > version) {
+					continue;
+				}
+
+				versions.put(logical, version);
+				resolved.put(logical, entry);
+			}
+
+			return resolved;
+		}
+
+		private boolean isMultiRelease(ResourceFileSystem fileSystem) {
+			if (!entries.containsKey(JarFile.MANIFEST_NAME)) {
+				return false;
+			}
+
+			try {
+				URL manifest = url(entries.get(JarFile.MANIFEST_NAME));
+				try (InputStream inputStream = fileSystem.openStream(manifest, () -> {
+					URLConnection connection = manifest.openConnection();
+					connection.setUseCaches(false);
+					return connection.getInputStream();
+				})) {
+					return "true".equalsIgnoreCase(new Manifest(inputStream).getMainAttributes()
+						.getValue("Multi-Release"));
+				}
+			}
+			catch (IOException e) {
+				throw ResourceFS.thro(e);
+			}
+		}
+
+		private static Map<String, ZipEntry> read(URL url, Path local, ResourceFileSystem fileSystem)
+			throws IOException {
+
+			Map<String, ZipEntry> entries = new LinkedHashMap<>();
+
+			if (local != null) {
+				ResourceScheduler.Permit permit = fileSystem.acquire(url.getProtocol());
+				try (ZipFile zipFile = new ZipFile(local.toFile())) {
+					zipFile.stream()
+						.forEach(entry -> entries.put(entry.getName(), entry));
+				}
+				finally {
+					permit.close();
+				}
+			}
+			else {
+				// no random access, sizes and crcs are known once each entry was read through; hedged
+				// and failed over like any other read where mirrors are configured
+				try (ZipInputStream zipInputStream = new ZipInputStream(fileSystem.openStream(url))) {
+					ZipEntry entry;
+					while ((entry = zipInputStream.getNextEntry()) != null) {
+						long size = zipInputStream.transferTo(OutputStream.nullOutputStream());
+						if (!entry.isDirectory() && entry.getSize() < 0) {
+							entry.setSize(size);
+						}
+						entries.put(entry.getName(), entry);
+					}
+				}
+			}
+
+			return entries;
+		}
+
+		private static Path local(URL url) {
+			if (!"file".equals(url.getProtocol())) {
+				return null;
+			}
+			try {
+				return Paths.get(new File(url.toURI()).getPath());
+			}
+			catch (URISyntaxException | IllegalArgumentException e) {
+				return null;
+			}
+		}
+
+	}
+
+}
@@ -17,23 +17,34 @@
 package com.github.rotty3000.resourcefs;
 
 import java.io.IOException;
+import java.net.URL;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ResourceAttributeView implements BasicFileAttributeView {
 
+	static final String	BASIC		= "basic";
+	static final String	RESOURCE	= "resource";
+	static final String	DIGEST		= "digest";
+	static final List<String>	AGGREGATES	= List.of("totalSize", "fileCount", "newestModifiedTime");
+
 	final BasicFileAttributes attributes;
 	final ResourcePath				resourcePath;
 
 	ResourceAttributeView(ResourcePath resourcePath, BasicFileAttributes attributes) {
 		this.resourcePath = resourcePath;
 		this.attributes = attributes;
+		resourcePath.view = this;
 	}
 
 	@Override
 	public String name() {
-		return "basic";
+		return BASIC;
 	}
 
 	public BasicFileAttributes getAttributes() {
@@ -58,6 +69,96 @@ public class ResourceAttributeView implements BasicFileAttributeView {
 		return attributes.size();
 	}
 
+	public URL source() {
+		if (attributes instanceof ResourceFileAttributes) {
+			return ((ResourceFileAttributes) attributes).url;
+		}
+		return null;
+	}
+
+	public List<URL> shadowed() {
+		if (attributes instanceof ResourceFileAttributes) {
+			return Collections.unmodifiableList(((ResourceFileAttributes) attributes).shadowed);
+		}
+		return Collections.emptyList();
+	}
+
+	private ResourceDirAttributes aggregates() {
+		return resourcePath.fileSystem.fileStore.aggregates(resourcePath);
+	}
+
+	// the whole subtree for directories, the file itself otherwise; the first read for a directory
+	// lists whatever is pending below it, later ones are constant time
+	public long totalSize() {
+		if (attributes instanceof ResourceDirAttributes) {
+			return aggregates().totalSize.get();
+		}
+		return attributes.size();
+	}
+
+	public long fileCount() {
+		if (attributes instanceof ResourceDirAttributes) {
+			return aggregates().fileCount.get();
+		}
+		return 1;
+	}
+
+	public FileTime newestModifiedTime() {
+		if (attributes instanceof ResourceDirAttributes) {
+			return FileTime.fromMillis(aggregates().newestModified.get());
+		}
+		return attributes.lastModifiedTime();
+	}
+
+	Object aggregate(String name) {
+		switch (name) {
+			case "totalSize" :
+				return totalSize();
+			case "fileCount" :
+				return fileCount();
+			default :
+				return newestModifiedTime();
+		}
+	}
+
+	// algorithm -> hex digest, directories have none
+	public Map<String, String> digest() throws IOException {
+		if (!(attributes instanceof ResourceFileAttributes)) {
+			return Collections.emptyMap();
+		}
+		return ResourceDigests.get((ResourceFileAttributes) attributes, resourcePath.fileSystem.digestAlgorithms)
+			.toHex();
+	}
+
+	Map<String, Object> readAttributes(String viewName) {
+		Map<String, Object> map = new LinkedHashMap<>();
+
+		map.put("lastModifiedTime", attributes.lastModifiedTime());
+		map.put("lastAccessTime", attributes.lastAccessTime());
+		map.put("creationTime", attributes.creationTime());
+		map.put("size", attributes.size());
+		map.put("isRegularFile", attributes.isRegularFile());
+		map.put("isDirectory", attributes.isDirectory());
+		map.put("isSymbolicLink", attributes.isSymbolicLink());
+		map.put("isOther", attributes.isOther());
+		map.put("fileKey", attributes.fileKey());
+
+		if (RESOURCE.equals(viewName)) {
+			map.put("source", source());
+			map.put("shadowed", shadowed());
+			map.put("crc", (attributes instanceof ResourceFileAttributes) ? ((ResourceFileAttributes) attributes).crc : -1L);
+			// a directory's aggregates list whatever is pending below it, so they are only included
+			// once that happened, by name they are always read
+			if (!(attributes instanceof ResourceDirAttributes) || resourcePath.fileSystem.fileStore.expanded(resourcePath)) {
+				for (String name : AGGREGATES) {
+					map.put(name, aggregate(name));
+				}
+			}
+		}
+
+		return map;
+	}
+
 	@Override
 	public String toString() {
 		return getClass().getSimpleName() + "$" + attributes.getClass()
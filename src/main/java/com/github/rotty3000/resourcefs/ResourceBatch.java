@@ -0,0 +1,204 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+class ResourceBatch {
+
+	final int							parallelism;
+	final BiConsumer<Path, ByteBuffer>	consumer;
+
+	// the consumer is called from the worker threads, once per path
+	ResourceBatch(int parallelism, BiConsumer<Path, ByteBuffer> consumer) {
+		this.parallelism = Math.max(1, parallelism);
+		this.consumer = consumer;
+	}
+
+	void read(Collection<? extends Path> paths) throws IOException {
+		// archive url -> entry name -> paths, every other source is its own group
+		Map<String, Map<String, List<ResourcePath>>> archives = new LinkedHashMap<>();
+		List<ResourceAttributeView> singles = new ArrayList<>();
+
+		for (Path path : paths) {
+			if (!(path instanceof ResourcePath)) {
+				throw new ProviderMismatchException();
+			}
+
+			ResourcePath resourcePath = (ResourcePath) path;
+			ResourceAttributeView view = resourcePath.fileSystem.provider.lookup(resourcePath);
+
+			if (!view.attributes.isRegularFile()) {
+				throw new IOException("Path is not a file " + path);
+			}
+
+			ResourceFileAttributes attributes = (ResourceFileAttributes) view.attributes;
+
+			if (attributes.buffer != null) {
+				consumer.accept(resourcePath, attributes.slice());
+				continue;
+			}
+
+			String spec = (attributes.url == null) ? "" : attributes.url.toExternalForm();
+			int separator = spec.indexOf("!/");
+
+			if (spec.startsWith("jar:") && separator > -1) {
+				archives.computeIfAbsent(spec.substring(4, separator), k -> new HashMap<>())
+					.computeIfAbsent(spec.substring(separator + 2), k -> new ArrayList<>())
+					.add(resourcePath);
+			}
+			else {
+				singles.add(view);
+			}
+		}
+
+		List<Future<?>> futures = new ArrayList<>();
+		ExecutorService executor = ResourceFS.newExecutor("ResourceFS-batch", parallelism);
+
+		try {
+			archives.forEach((archive, entries) -> futures.add(executor.submit(() -> {
+				readArchive(archive, entries);
+				return null;
+			})));
+
+			for (ResourceAttributeView view : singles) {
+				futures.add(executor.submit(() -> {
+					try (InputStream inputStream = ((ResourceFileAttributes) view.attributes).openStream()) {
+						consumer.accept(view.resourcePath, ByteBuffer.wrap(inputStream.readAllBytes()));
+					}
+					return null;
+				}));
+			}
+
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw ResourceFS.thro(e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// every path of an entry gets the entry's content, read once
+	private void readArchive(String archive, Map<String, List<ResourcePath>> entries) throws IOException {
+		Map<String, List<ResourcePath>> pending = new HashMap<>(entries);
+
+		ResourceFileSystem fileSystem = entries.values()
+			.iterator()
+			.next()
+			.get(0).fileSystem;
+		URL url = new URL(archive);
+		Path local = local(url);
+
+		if (local != null) {
+			// random access, only the wanted entries are inflated
+			ResourceScheduler.Permit permit = fileSystem.acquire(url.getProtocol());
+			try (ZipFile zipFile = new ZipFile(local.toFile())) {
+				for (Iterator<Map.Entry<String, List<ResourcePath>>> iterator = pending.entrySet()
+					.iterator(); iterator.hasNext();) {
+
+					Map.Entry<String, List<ResourcePath>> wanted = iterator.next();
+					ZipEntry entry = zipFile.getEntry(wanted.getKey());
+					if (entry == null) {
+						continue;
+					}
+					try (InputStream inputStream = zipFile.getInputStream(entry)) {
+						accept(wanted.getValue(), ByteBuffer.wrap(inputStream.readAllBytes()));
+					}
+					iterator.remove();
+				}
+			}
+			finally {
+				permit.close();
+			}
+		}
+		else {
+			// one sequential pass, stopping once every wanted entry was seen; a stream cannot step over
+			// an entry without inflating it
+			try (ZipInputStream zipInputStream = new ZipInputStream(fileSystem.openStream(url))) {
+				ZipEntry entry;
+				while (!pending.isEmpty() && (entry = zipInputStream.getNextEntry()) != null) {
+					List<ResourcePath> resourcePaths = pending.remove(entry.getName());
+					if (resourcePaths != null) {
+						accept(resourcePaths, ByteBuffer.wrap(zipInputStream.readAllBytes()));
+					}
+				}
+			}
+		}
+
+		if (!pending.isEmpty()) {
+			throw new NoSuchFileException(pending.values()
+				.iterator()
+				.next()
+				.get(0)
+				.toString());
+		}
+	}
+
+	// each path gets its own position and limit over the same bytes
+	private void accept(List<ResourcePath> resourcePaths, ByteBuffer buffer) {
+		for (ResourcePath resourcePath : resourcePaths) {
+			consumer.accept(resourcePath, buffer.duplicate());
+		}
+	}
+
+	private static Path local(URL url) {
+		if (!"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			return Paths.get(url.toURI());
+		}
+		catch (URISyntaxException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+class ResourceBufferChannel implements SeekableByteChannel {
+
+	private final ByteBuffer	buffer;
+	private volatile boolean	open	= true;
+
+	ResourceBufferChannel(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		open = false;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		int read = Math.min(dst.remaining(), buffer.remaining());
+		ByteBuffer chunk = buffer.duplicate();
+		chunk.limit(chunk.position() + read);
+		dst.put(chunk);
+		buffer.position(buffer.position() + read);
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return buffer.position();
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("negative position " + newPosition);
+		}
+		buffer.position((int) Math.min(newPosition, buffer.limit()));
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return buffer.limit();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+}
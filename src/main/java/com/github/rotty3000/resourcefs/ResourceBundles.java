@@ -0,0 +1,109 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.util.tracker.BundleTracker;
+
+// the entries of every installed bundle under /<bundle id>, kept current as bundles come, change
+// and go instead of remounting
+class ResourceBundles extends BundleTracker<ResourcePath> {
+
+	static final int STATES = Bundle.INSTALLED | Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING;
+
+	final ResourceFileSystem fileSystem;
+
+	ResourceBundles(ResourceFileSystem fileSystem, BundleContext bundleContext) {
+		super(bundleContext, STATES, null);
+		this.fileSystem = fileSystem;
+	}
+
+	@Override
+	public ResourcePath addingBundle(Bundle bundle, BundleEvent event) {
+		return mount(bundle);
+	}
+
+	@Override
+	public void modifiedBundle(Bundle bundle, BundleEvent event, ResourcePath root) {
+		if (event != null && event.getType() == BundleEvent.UPDATED) {
+			fileSystem.fileStore.unmount(root);
+			mount(bundle);
+		}
+	}
+
+	@Override
+	public void removedBundle(Bundle bundle, BundleEvent event, ResourcePath root) {
+		fileSystem.fileStore.unmount(root);
+	}
+
+	private ResourcePath mount(Bundle bundle) {
+		ResourceFileStore fileStore = fileSystem.fileStore;
+		String prefix = ResourceFS.SEPARATOR + bundle.getBundleId();
+
+		fileStore.mount(prefix, null, 0, null);
+
+		// one enumeration per bundle, lookups never go back to it
+		Enumeration<URL> entries = bundle.findEntries(ResourceFS.SEPARATOR, "*", true);
+		while (entries != null && entries.hasMoreElements()) {
+			URL url = entries.nextElement();
+			String name = prefix + url.getPath();
+
+			if (name.endsWith(ResourceFS.SEPARATOR)) {
+				fileStore.mount(name, null, 0, null);
+			}
+			else {
+				fileStore.mount(name, url, 0, current -> attributes(current, url, bundle.getLastModified()));
+			}
+		}
+
+		fileStore.resizeFilter();
+		return new ResourcePath(fileSystem, prefix);
+	}
+
+	// bundle entry connections only report the int length, and only once connected; connecting looks
+	// the entry up without reading it
+	private static ResourceFileAttributes attributes(ResourcePath current, URL url, long lastModified) {
+		try {
+			URLConnection connection = url.openConnection();
+			connection.connect();
+			long size = connection.getContentLengthLong();
+			if (size < 0) {
+				size = connection.getContentLength();
+			}
+			long entryModified = connection.getLastModified();
+			return new ResourceFileAttributes(current, url, size, -1,
+				(entryModified > 0) ? entryModified : lastModified, lastModified);
+		}
+		catch (IOException e) {
+			throw ResourceFS.thro(e);
+		}
+	}
+
+	static ResourceBundles create(ResourceFileSystem fileSystem, Object bundleContext) {
+		ResourceBundles bundles = new ResourceBundles(fileSystem, (BundleContext) bundleContext);
+		bundles.open();
+		return bundles;
+	}
+
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.ProviderMismatchException;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ResourceClassLoader extends ClassLoader {
+
+	static {
+		registerAsParallelCapable();
+	}
+
+	static final int	MIN_BUFFER		= 8 * 1024;
+	// largest array the vm hands out
+	static final int	MAX_BUFFER		= Integer.MAX_VALUE - 8;
+	// larger buffers are left to the gc rather than kept around
+	static final int	MAX_POOLED		= 1024 * 1024;
+
+	// defineClass may load super types re-entrantly while it still parses the outer buffer, so
+	// buffers are checked out of a small pool shared by all threads and given back when defined
+	private static final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(
+		2 * Runtime.getRuntime()
+			.availableProcessors());
+
+	final ResourceFileSystem						fileSystem;
+	final Map<String, ResourcePath>					packages			= new ConcurrentHashMap<>();
+	final Map<String, ProtectionDomain>				protectionDomains	= new ConcurrentHashMap<>();
+
+	public ResourceClassLoader(FileSystem fileSystem, ClassLoader parent) {
+		super(parent);
+
+		if (!(fileSystem instanceof ResourceFileSystem)) {
+			throw new ProviderMismatchException();
+		}
+
+		this.fileSystem = (ResourceFileSystem) fileSystem;
+
+		// package name -> directory, so lookups in unknown packages fail without touching the index
+		this.fileSystem.fileStore.views.forEach((path, view) -> {
+			if (view.attributes.isDirectory()) {
+				packages.put(String.join(".", path.segments), path);
+			}
+		});
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		int lastDot = name.lastIndexOf('.');
+		String packageName = (lastDot < 0) ? "" : name.substring(0, lastDot);
+
+		// directories that are still to be listed may hold packages not in the index yet
+		if (lastDot > -1 && !packages.containsKey(packageName) && fileSystem.fileStore.pending.isEmpty()) {
+			throw new ClassNotFoundException(name);
+		}
+
+		String path = name.replace('.', ResourceFS.SEPARATOR.charAt(0))
+			.concat(".class");
+
+		ResourceAttributeView view = fileSystem.fileStore.lookup(path);
+		if (view == null || !view.attributes.isRegularFile()) {
+			throw new ClassNotFoundException(name);
+		}
+
+		if (lastDot > -1 && getDefinedPackage(packageName) == null) {
+			try {
+				definePackage(packageName, null, null, null, null, null, null, null);
+			}
+			catch (IllegalArgumentException iae) {
+				// defined concurrently
+			}
+		}
+
+		// mapped and other direct sources are defined straight from their slice; defineClass would
+		// copy a read-only heap slice into a new array, so those are read into a pooled buffer below
+		ByteBuffer slice = ((ResourceFileAttributes) view.attributes).slice();
+		if (slice != null && slice.isDirect()) {
+			fileSystem.record(view.resourcePath);
+			return defineClass(name, slice, protectionDomain(view.source()));
+		}
+
+		ByteBuffer buffer = buffers.poll();
+
+		try {
+			buffer = read(view, buffer);
+
+			return defineClass(name, buffer, protectionDomain(view.source()));
+		}
+		catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+		finally {
+			if (buffer != null && buffer.capacity() <= MAX_POOLED) {
+				buffers.offer(buffer);
+			}
+		}
+	}
+
+	@Override
+	protected URL findResource(String name) {
+		ResourceAttributeView view = fileSystem.fileStore.lookup(name);
+
+		return (view == null) ? null : view.source();
+	}
+
+	@Override
+	protected Enumeration<URL> findResources(String name) throws IOException {
+		ResourceAttributeView view = fileSystem.fileStore.lookup(name);
+
+		if (view == null || view.source() == null) {
+			return Collections.emptyEnumeration();
+		}
+
+		List<URL> urls = new ArrayList<>();
+		urls.add(view.source());
+		urls.addAll(view.shadowed());
+
+		return Collections.enumeration(urls);
+	}
+
+	// reads into a heap buffer sized from the index, which defineClass takes without a copy; sources
+	// without a known size are read to the end, growing the buffer as needed
+	ByteBuffer read(ResourceAttributeView view, ByteBuffer buffer) throws IOException {
+		long size = view.size();
+		int expected = (size < 0) ? MIN_BUFFER : (int) Math.min(size, MAX_BUFFER);
+
+		if (buffer == null || buffer.capacity() < expected) {
+			buffer = ByteBuffer.allocate(capacity(expected));
+		}
+		buffer.clear();
+
+		try (SeekableByteChannel channel = fileSystem.provider.newByteChannel(view.resourcePath, Collections.emptySet())) {
+			while (size < 0 || buffer.position() < size) {
+				if (!buffer.hasRemaining()) {
+					if (buffer.capacity() == MAX_BUFFER) {
+						throw new IOException("Too large to define " + view.resourcePath);
+					}
+					ByteBuffer grown = ByteBuffer.allocate(capacity(buffer.capacity() + 1));
+					buffer = grown.put(buffer.flip());
+				}
+				if (channel.read(buffer) < 0) {
+					break;
+				}
+			}
+		}
+
+		return buffer.flip();
+	}
+
+	// the next power of two, bounded
+	static int capacity(int needed) {
+		long capacity = Math.max(MIN_BUFFER, Long.highestOneBit(Math.max(1, needed - 1)) << 1);
+		return (int) Math.min(capacity, MAX_BUFFER);
+	}
+
+	ProtectionDomain protectionDomain(URL source) {
+		if (source == null) {
+			return null;
+		}
+
+		String spec = source.toExternalForm();
+		int separator = "jar".equals(source.getProtocol()) ? spec.indexOf("!/") : -1;
+		String location = (separator > -1) ? spec.substring(4, separator) : spec;
+
+		// anything but an archive is its own code source, parsing it again would lose a custom handler
+		return protectionDomains.computeIfAbsent(location, key -> {
+			try {
+				URL codeSource = (separator > -1) ? new URL(key) : source;
+				return new ProtectionDomain(new CodeSource(codeSource, (Certificate[]) null), null, this, null);
+			}
+			catch (MalformedURLException e) {
+				throw ResourceFS.thro(e);
+			}
+		});
+	}
+
+}
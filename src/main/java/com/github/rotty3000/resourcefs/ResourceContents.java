@@ -0,0 +1,204 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// content held in memory or mapped, shared by identity across every path and file system of the
+// provider: the same bytes reached through several paths or file systems are read and held once.
+// Entries are held weakly here and strongly by each file system using them, see
+// ResourceFileStore.hold, so a body goes away with the last file system using it.
+class ResourceContents {
+
+	// cached bodies, by content identity
+	final Pool	bodies		= new Pool();
+	// mapped images, by real path, size and modification time
+	final Pool	mappings	= new Pool();
+
+	// size and digest when known, from the index or computed, otherwise where the content comes from;
+	// null for in-memory content nothing is known about
+	static Object identity(ResourceFileAttributes attributes) {
+		ResourceDigests digests = attributes.digests;
+		if (digests != null && digests.size == attributes.size && !digests.digests.isEmpty()) {
+			Map.Entry<String, byte[]> digest = digests.digests.entrySet()
+				.iterator()
+				.next();
+			return new Digest(attributes.size, digest.getKey(), digest.getValue());
+		}
+		if (attributes.url != null) {
+			return Arrays.asList(attributes.url.toExternalForm(), attributes.size, attributes.crc,
+				attributes.lastModifiedTime.toMillis());
+		}
+		return null;
+	}
+
+	ByteBuffer map(Path image) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(image, BasicFileAttributes.class);
+		Object key = Arrays.asList(image.toRealPath()
+			.toString(), attributes.size(),
+			attributes.lastModifiedTime()
+				.toMillis());
+
+		try {
+			return mappings.share(key, k -> {
+				try {
+					return ResourceImage.map(image);
+				}
+				catch (IOException e) {
+					throw ResourceFS.thro(e);
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	Map<String, Map<String, Object>> stats() {
+		Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+		stats.put("bodies", bodies.stats());
+		stats.put("mappings", mappings.stats());
+		return stats;
+	}
+
+	static class Pool {
+
+		private final Map<Object, Shared>			shared		= new ConcurrentHashMap<>();
+		private final ReferenceQueue<ByteBuffer>	collected	= new ReferenceQueue<>();
+		final AtomicLong							hits		= new AtomicLong();
+		final AtomicLong							savedBytes	= new AtomicLong();
+
+		// the buffer held for the key, null when there is none
+		ByteBuffer get(Object key) {
+			purge();
+			Shared current = shared.get(key);
+			ByteBuffer buffer = (current == null) ? null : current.get();
+			if (buffer != null) {
+				hits.incrementAndGet();
+				savedBytes.addAndGet(buffer.remaining());
+			}
+			return buffer;
+		}
+
+		// the buffer already held for the key, or the given one which is then held from now on; the
+		// caller keeps the returned buffer itself, not a duplicate, for as long as it uses it
+		ByteBuffer share(Object key, ByteBuffer buffer) {
+			return share(key, k -> buffer);
+		}
+
+		// loaded outside the map, only installing it is done under its lock; when another caller
+		// installed one meanwhile that one is returned and the loaded one dropped
+		ByteBuffer share(Object key, Function<Object, ByteBuffer> load) {
+			ByteBuffer current = get(key);
+			if (current != null) {
+				return current;
+			}
+
+			ByteBuffer loaded = load.apply(key);
+			ByteBuffer[] result = new ByteBuffer[1];
+			shared.compute(key, (k, existing) -> {
+				result[0] = (existing == null) ? null : existing.get();
+				if (result[0] != null) {
+					return existing;
+				}
+				result[0] = loaded;
+				return new Shared(k, loaded, collected);
+			});
+			if (result[0] != loaded) {
+				hits.incrementAndGet();
+				savedBytes.addAndGet(result[0].remaining());
+			}
+			return result[0];
+		}
+
+		int size() {
+			purge();
+			return shared.size();
+		}
+
+		Map<String, Object> stats() {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("distinct", size());
+			stats.put("hits", hits.get());
+			stats.put("savedBytes", savedBytes.get());
+			return stats;
+		}
+
+		private void purge() {
+			Shared reference;
+			while ((reference = (Shared) collected.poll()) != null) {
+				shared.remove(reference.key, reference);
+			}
+		}
+
+	}
+
+	static class Shared extends WeakReference<ByteBuffer> {
+
+		final Object key;
+
+		Shared(Object key, ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			this.key = key;
+		}
+
+	}
+
+	static class Digest {
+
+		final long		size;
+		final String	algorithm;
+		final byte[]	digest;
+
+		Digest(long size, String algorithm, byte[] digest) {
+			this.size = size;
+			this.algorithm = algorithm;
+			this.digest = digest;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Digest)) {
+				return false;
+			}
+			Digest other = (Digest) obj;
+			return size == other.size && algorithm.equals(other.algorithm) && Arrays.equals(digest, other.digest);
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(size) ^ Arrays.hashCode(digest);
+		}
+
+	}
+
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+class ResourceDigests {
+
+	static final List<String> DEFAULT_ALGORITHMS = Collections.singletonList("SHA-256");
+
+	// size and modification time of the content the digests were computed from
+	final long					size;
+	final long					lastModified;
+	final Map<String, byte[]>	digests;
+
+	ResourceDigests(long size, long lastModified, Map<String, byte[]> digests) {
+		this.size = size;
+		this.lastModified = lastModified;
+		this.digests = digests;
+	}
+
+	Map<String, String> toHex() {
+		Map<String, String> map = new LinkedHashMap<>();
+		digests.forEach((algorithm, digest) -> map.put(algorithm, hex(digest)));
+		return map;
+	}
+
+	static ResourceDigests get(ResourceFileAttributes attributes, List<String> algorithms) throws IOException {
+		long size = attributes.size;
+		long lastModified = attributes.lastModifiedTime.toMillis();
+
+		// local files can change under the index, compare against what is on disk now
+		Path local = attributes.localPath();
+		if (local != null) {
+			BasicFileAttributes current = Files.readAttributes(local, BasicFileAttributes.class);
+			size = current.size();
+			lastModified = current.lastModifiedTime()
+				.toMillis();
+		}
+
+		ResourceDigests cached = attributes.digests;
+		if (cached != null && cached.size == size && cached.lastModified == lastModified
+			&& cached.digests.keySet()
+				.containsAll(algorithms)) {
+
+			return cached;
+		}
+
+		ResourceDigests computed = new ResourceDigests(size, lastModified, compute(attributes, algorithms));
+		attributes.digests = computed;
+		return computed;
+	}
+
+	private static Map<String, byte[]> compute(ResourceFileAttributes attributes, List<String> algorithms)
+		throws IOException {
+
+		MessageDigest[] messageDigests = new MessageDigest[algorithms.size()];
+		for (int i = 0; i < messageDigests.length; i++) {
+			try {
+				messageDigests[i] = MessageDigest.getInstance(algorithms.get(i));
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+		}
+
+		ByteBuffer slice = attributes.slice();
+		if (slice != null) {
+			for (MessageDigest messageDigest : messageDigests) {
+				messageDigest.update(slice.duplicate());
+			}
+		}
+		else {
+			byte[] buffer = new byte[64 * 1024];
+			try (InputStream inputStream = attributes.openStream(false)) {
+				int read;
+				while ((read = inputStream.read(buffer)) > 0) {
+					for (MessageDigest messageDigest : messageDigests) {
+						messageDigest.update(buffer, 0, read);
+					}
+				}
+			}
+		}
+
+		Map<String, byte[]> digests = new LinkedHashMap<>();
+		for (int i = 0; i < messageDigests.length; i++) {
+			digests.put(algorithms.get(i), messageDigests[i].digest());
+		}
+		return digests;
+	}
+
+	static Map<Path, Map<String, String>> digestTree(ResourceAttributeView root, int parallelism) throws IOException {
+		Map<Path, Map<String, String>> digests = new ConcurrentHashMap<>();
+
+		if (!root.attributes.isDirectory()) {
+			digests.put(root.resourcePath, root.digest());
+			return digests;
+		}
+
+		List<Future<?>> futures = new ArrayList<>();
+		ExecutorService executor = ResourceFS.newExecutor("ResourceFS-digest", parallelism);
+
+		try {
+			collect(root, digests, futures, executor);
+
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw ResourceFS.thro(e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		return digests;
+	}
+
+	private static void collect(
+			ResourceAttributeView dir, Map<Path, Map<String, String>> digests, List<Future<?>> futures,
+			ExecutorService executor)
+		throws IOException {
+
+		for (ResourceAttributeView child : dir.resourcePath.fileSystem.fileStore.list(dir.resourcePath)) {
+			if (child.attributes.isDirectory()) {
+				collect(child, digests, futures, executor);
+			}
+			else {
+				futures.add(executor.submit(() -> {
+					digests.put(child.resourcePath, child.digest());
+					return null;
+				}));
+			}
+		}
+	}
+
+	static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+			chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+		}
+		return new String(chars);
+	}
+
+}
@@ -18,19 +18,48 @@ package com.github.rotty3000.resourcefs;
 
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicLong;
 
 class ResourceDirAttributes implements BasicFileAttributes {
 
 	final ResourcePath	resourcePath;
 	final FileTime	lastModifiedTime;
 	final FileTime	creationTime;
-
-	ResourceDirAttributes(ResourcePath resourcePath) {
+	// null for the root
+	final ResourceDirAttributes	parent;
+	// over the whole subtree, kept current as files are indexed and unindexed
+	final AtomicLong	totalSize		= new AtomicLong();
+	final AtomicLong	fileCount		= new AtomicLong();
+	final AtomicLong	newestModified	= new AtomicLong();
+	// no pending directory left below, see ResourceFileStore.aggregates
+	volatile boolean	complete;
+
+	ResourceDirAttributes(ResourcePath resourcePath, ResourceDirAttributes parent) {
 		this.resourcePath = resourcePath;
+		this.parent = parent;
 		this.lastModifiedTime = FileTime.fromMillis(0);
 		this.creationTime = FileTime.fromMillis(0);
 	}
 
+	void added(long size, long lastModified) {
+		for (ResourceDirAttributes dir = this; dir != null; dir = dir.parent) {
+			dir.totalSize.addAndGet(size);
+			dir.fileCount.incrementAndGet();
+			dir.newestModified.accumulateAndGet(lastModified, Math::max);
+		}
+	}
+
+	// true when the newest file may have been the one removed, so the caller has to recompute
+	boolean removed(long size, long lastModified) {
+		boolean stale = false;
+		for (ResourceDirAttributes dir = this; dir != null; dir = dir.parent) {
+			dir.totalSize.addAndGet(-size);
+			dir.fileCount.decrementAndGet();
+			stale |= (lastModified >= dir.newestModified.get());
+		}
+		return stale;
+	}
+
 	@Override
 	public FileTime lastModifiedTime() {
 		return lastModifiedTime;
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+class ResourceExport {
+
+	final ResourceFS	provider;
+	final boolean		replaceExisting;
+	final boolean		copyAttributes;
+	final int			parallelism;
+
+	ResourceExport(ResourceFS provider, int parallelism, CopyOption... options) {
+		List<CopyOption> list = Arrays.asList(options);
+		this.provider = provider;
+		this.replaceExisting = list.contains(StandardCopyOption.REPLACE_EXISTING);
+		this.copyAttributes = list.contains(StandardCopyOption.COPY_ATTRIBUTES);
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	void exportFile(ResourceAttributeView view, Path target) throws IOException {
+		Set<StandardOpenOption> openOptions = EnumSet.of(StandardOpenOption.WRITE);
+		if (replaceExisting) {
+			openOptions.add(StandardOpenOption.CREATE);
+			openOptions.add(StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		else {
+			openOptions.add(StandardOpenOption.CREATE_NEW);
+		}
+
+		ResourceFileAttributes attributes = (ResourceFileAttributes) view.attributes;
+		ByteBuffer slice = attributes.slice();
+		Path local = attributes.localPath();
+
+		try (FileChannel out = FileChannel.open(target, openOptions)) {
+			if (slice != null) {
+				while (slice.hasRemaining()) {
+					out.write(slice);
+				}
+			}
+			else if (local != null) {
+				// let the OS move the bytes between the two files
+				try (FileChannel in = FileChannel.open(local, StandardOpenOption.READ)) {
+					transfer(in, out, in.size());
+				}
+			}
+			else {
+				try (InputStream inputStream = provider.newInputStream(view.resourcePath);
+					ReadableByteChannel in = Channels.newChannel(inputStream)) {
+
+					transfer(in, out, Long.MAX_VALUE);
+				}
+			}
+		}
+
+		copyAttributes(attributes, target);
+	}
+
+	// one directory as Files.copy would make it: an existing one is only replaced when empty and asked to
+	void exportDirectory(ResourceAttributeView view, Path target) throws IOException {
+		if (replaceExisting) {
+			Files.deleteIfExists(target);
+		}
+
+		Files.createDirectory(target);
+
+		copyAttributes(view.attributes, target);
+	}
+
+	void exportTree(ResourceAttributeView root, Path target) throws IOException {
+		if (root.attributes.isRegularFile()) {
+			exportFile(root, target);
+			return;
+		}
+
+		List<ResourceAttributeView> directories = new ArrayList<>();
+		List<Future<?>> futures = new ArrayList<>();
+		ExecutorService executor = ResourceFS.newExecutor("ResourceFS-export", parallelism);
+
+		try {
+			collect(root, target, directories, futures, executor);
+
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread()
+				.interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw ResourceFS.thro(e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		// directory times last, writing their children would have reset them
+		if (copyAttributes) {
+			for (ResourceAttributeView directory : directories) {
+				copyAttributes(directory.attributes, target.resolve(relative(root, directory)));
+			}
+		}
+	}
+
+	private void collect(
+			ResourceAttributeView dir, Path target, List<ResourceAttributeView> directories, List<Future<?>> futures,
+			ExecutorService executor)
+		throws IOException {
+
+		if (!Files.isDirectory(target)) {
+			Files.createDirectories(target);
+		}
+
+		directories.add(dir);
+
+		for (ResourceAttributeView child : dir.resourcePath.fileSystem.fileStore.list(dir.resourcePath)) {
+			Path childTarget = target.resolve(child.resourcePath.segments[child.resourcePath.segments.length - 1]);
+
+			if (child.attributes.isDirectory()) {
+				collect(child, childTarget, directories, futures, executor);
+			}
+			else {
+				futures.add(executor.submit(() -> {
+					exportFile(child, childTarget);
+					return null;
+				}));
+			}
+		}
+	}
+
+	private void copyAttributes(BasicFileAttributes attributes, Path target) throws IOException {
+		if (!copyAttributes) {
+			return;
+		}
+
+		Files.getFileAttributeView(target, BasicFileAttributeView.class)
+			.setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), attributes.creationTime());
+	}
+
+	private static String relative(ResourceAttributeView root, ResourceAttributeView directory) {
+		String[] segments = directory.resourcePath.segments;
+		int depth = root.resourcePath.segments.length;
+
+		return String.join(
+			ResourceFS.SEPARATOR, Arrays.copyOfRange(segments, depth, segments.length));
+	}
+
+	private static void transfer(ReadableByteChannel in, FileChannel out, long size) throws IOException {
+		long position = 0;
+		while (position < size) {
+			long transferred = out.transferFrom(in, position, Math.min(size - position, 8L * 1024 * 1024));
+			if (transferred <= 0) {
+				break;
+			}
+			position += transferred;
+		}
+	}
+
+}
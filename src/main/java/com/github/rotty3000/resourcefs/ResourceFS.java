@@ -23,17 +23,24 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessMode;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystemAlreadyExistsException;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
@@ -47,7 +54,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 public class ResourceFS extends FileSystemProvider {
@@ -55,8 +68,37 @@ public class ResourceFS extends FileSystemProvider {
 	public static final String	SCHEME		= "resources";
 	public static final String	SEPARATOR	= File.separatorChar + "";
 	public static final String	URLS		= SCHEME;
+	public static final String	OVERLAY		= "overlay";
+	public static final String	BUFFERS		= "buffers";
+	public static final String	READ_AHEAD	= "readAhead";
+	public static final String	EXPAND_EAGERLY	= "expandEagerly";
+	public static final String	DIGEST_ALGORITHMS	= "digestAlgorithms";
+	public static final String	TRACE		= "trace";
+	public static final String	PREWARM_LIMIT	= "prewarmLimit";
+	public static final String	MULTI_RELEASE	= "multiRelease";
+	public static final String	MIRRORS		= "mirrors";
+	public static final String	HEDGE_DELAY	= "hedgeDelay";
+	public static final String	MIRROR_TIMEOUT	= "mirrorTimeout";
+	public static final String	IMAGE		= "image";
+	public static final String	INDEX		= "index";
+	public static final String	BUNDLES		= "bundles";
+	public static final String	IO_LIMIT	= "ioLimit";
+	public static final String	SCHEME_LIMITS	= "schemeLimits";
+	public static final String	IO_TIMEOUT	= "ioTimeout";
+
+	// the provider FileSystems installed, so that file systems created through the static factories
+	// share its scheduler, archives and contents with those created through FileSystems; a private one
+	// where this class is not the installed provider, e.g. inside an OSGi framework
+	private static class Installed {
+
+		static final ResourceFS INSTANCE = FileSystemProvider.installedProviders()
+			.stream()
+			.filter(ResourceFS.class::isInstance)
+			.map(ResourceFS.class::cast)
+			.findFirst()
+			.orElseGet(ResourceFS::new);
 
-	private static ResourceFS	INSTANCE	= new ResourceFS();
+	}
 
 	static URI build(String authority, String path) {
 		try {
@@ -83,6 +125,15 @@ public class ResourceFS extends FileSystemProvider {
 		return sb.toString();
 	}
 
+	static ExecutorService newExecutor(String name, int parallelism) {
+		return Executors.newFixedThreadPool(Math.max(1, parallelism), runnable -> {
+			// workers only ever run batch, prefetch or background work
+			Thread thread = new Thread(ResourceScheduler.bulk(runnable), name);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
 	public static RuntimeException thro(Throwable t) {
 		throwsUnchecked(t);
 		throw new AssertionError("unreachable");
@@ -93,11 +144,143 @@ public class ResourceFS extends FileSystemProvider {
 		throw (E) throwable;
 	}
 
+	// reads done by the callable queue behind interactive ones
+	public static <T> T bulk(Callable<T> callable) throws Exception {
+		return ResourceScheduler.bulk(callable);
+	}
+
+	// picks up an index prebuilt for this name from the class path, when there is one
 	public static FileSystem newFileSystem(String name, Collection<URL> urls) throws IOException {
-		return INSTANCE.newFileSystem(build(name, null), Collections.singletonMap(URLS, urls));
+		URL index = ResourceIndex.resource(name);
+		if (index == null) {
+			return Installed.INSTANCE.newFileSystem(build(name, null), Collections.singletonMap(URLS, urls));
+		}
+
+		Map<String, Object> env = new HashMap<>();
+		env.put(URLS, urls);
+		env.put(INDEX, index);
+		return Installed.INSTANCE.newFileSystem(build(name, null), env);
+	}
+
+	public static boolean exists(FileSystem fileSystem, String path) {
+		if (!(fileSystem instanceof ResourceFileSystem)) {
+			throw new ProviderMismatchException();
+		}
+		return ((ResourceFileSystem) fileSystem).fileStore.exists(path);
+	}
+
+	public static void export(Path source, Path target, CopyOption... options) throws IOException {
+		export(source, target, Runtime.getRuntime()
+			.availableProcessors(), options);
+	}
+
+	public static void export(Path source, Path target, int parallelism, CopyOption... options) throws IOException {
+		if (!(source instanceof ResourcePath)) {
+			throw new ProviderMismatchException();
+		}
+		if (target instanceof ResourcePath) {
+			throw new ReadOnlyFileSystemException();
+		}
+
+		ResourceFS provider = ((ResourcePath) source).fileSystem.provider;
+
+		new ResourceExport(provider, parallelism, options).exportTree(provider.lookup(source), target);
+	}
+
+	public static void index(FileSystem fileSystem, Path target, boolean digests) throws IOException {
+		if (!(fileSystem instanceof ResourceFileSystem)) {
+			throw new ProviderMismatchException();
+		}
+		if (target instanceof ResourcePath) {
+			throw new ReadOnlyFileSystemException();
+		}
+
+		try {
+			bulk(() -> {
+				ResourceIndex.write((ResourceFileSystem) fileSystem, target, digests);
+				return null;
+			});
+		}
+		catch (Exception e) {
+			throw thro(e);
+		}
+	}
+
+	public static void pack(Path root, Path target, boolean compress) throws IOException {
+		if (!(root instanceof ResourcePath)) {
+			throw new ProviderMismatchException();
+		}
+		if (target instanceof ResourcePath) {
+			throw new ReadOnlyFileSystemException();
+		}
+
+		ResourcePath resourcePath = (ResourcePath) root;
+
+		try {
+			bulk(() -> {
+				ResourceImage.write(resourcePath.fileSystem, resourcePath, target, compress);
+				return null;
+			});
+		}
+		catch (Exception e) {
+			throw thro(e);
+		}
+	}
+
+	public static Map<Path, byte[]> readAll(Collection<? extends Path> paths, int parallelism) throws IOException {
+		Map<Path, byte[]> contents = new ConcurrentHashMap<>();
+		readAll(paths, parallelism, (path, buffer) -> {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			contents.put(path, bytes);
+		});
+		return contents;
+	}
+
+	public static void readAll(Collection<? extends Path> paths, int parallelism, BiConsumer<Path, ByteBuffer> consumer)
+		throws IOException {
+
+		new ResourceBatch(parallelism, consumer).read(paths);
+	}
+
+	public static Map<Path, Map<String, String>> digest(Path root, int parallelism) throws IOException {
+		if (!(root instanceof ResourcePath)) {
+			throw new ProviderMismatchException();
+		}
+
+		ResourceFS provider = ((ResourcePath) root).fileSystem.provider;
+
+		return ResourceDigests.digestTree(provider.lookup(root), parallelism);
+	}
+
+	public static Flow.Publisher<ByteBuffer> publish(Path path, int chunkSize) {
+		return publish(path, chunkSize, ResourcePublisher.DEFAULT_EXECUTOR);
+	}
+
+	public static Flow.Publisher<ByteBuffer> publish(Path path, int chunkSize, Executor executor) {
+		if (!(path instanceof ResourcePath)) {
+			throw new ProviderMismatchException();
+		}
+		return ResourcePublisher.bytes((ResourcePath) path, chunkSize, Objects.requireNonNull(executor));
+	}
+
+	public static Flow.Publisher<ResourceAttributeView> publishTree(Path root, int maxDepth) {
+		return publishTree(root, maxDepth, ResourcePublisher.DEFAULT_EXECUTOR);
+	}
+
+	public static Flow.Publisher<ResourceAttributeView> publishTree(Path root, int maxDepth, Executor executor) {
+		if (!(root instanceof ResourcePath)) {
+			throw new ProviderMismatchException();
+		}
+		return ResourcePublisher.tree((ResourcePath) root, maxDepth, Objects.requireNonNull(executor));
 	}
 
 	final Map<String, ResourceFileSystem>	fileSystems	= new ConcurrentHashMap<>();
+	// scheme limits for all file systems together are the provider's own configuration
+	final ResourceScheduler					scheduler	= new ResourceScheduler(
+		System.getProperty(ResourceScheduler.LIMITS_PROPERTY));
+	final ResourceArchives					archives	= new ResourceArchives();
+	final ResourceContents					contents	= new ResourceContents();
 
 	@Override
 	public void checkAccess(Path path, AccessMode... modes) throws IOException {
@@ -109,11 +292,27 @@ public class ResourceFS extends FileSystemProvider {
 		if (Arrays.binarySearch(modes, AccessMode.WRITE) > -1) {
 			throw new IOException("WRITE not supported by ResourceFS");
 		}
+
+		lookup(path);
 	}
 
+	// only reached through provider().copy: Files.copy to a path of another provider never calls either
+	// provider's copy and streams the bytes itself, use export to get the channel transfers
 	@Override
 	public void copy(Path source, Path target, CopyOption... options) throws IOException {
-		throw new UnsupportedOperationException();
+		if (target instanceof ResourcePath) {
+			throw new ReadOnlyFileSystemException();
+		}
+
+		ResourceAttributeView view = lookup(source);
+		ResourceExport export = new ResourceExport(this, 1, options);
+
+		if (view.attributes.isDirectory()) {
+			export.exportDirectory(view, target);
+			return;
+		}
+
+		export.exportFile(view, target);
 	}
 
 	@Override
@@ -139,12 +338,12 @@ public class ResourceFS extends FileSystemProvider {
 
 		ResourcePath resourcePath = (ResourcePath) path;
 
-		ResourceFileSystem fileSystem = getFileSystem(resourcePath.uri);
+		ResourceFileSystem fileSystem = fileSystem(resourcePath);
 		if (fileSystem == null) {
 			return null;
 		}
 
-		ResourceAttributeView view = fileSystem.fileStore.views.get(resourcePath);
+		ResourceAttributeView view = fileSystem.fileStore.lookup(resourcePath);
 
 		if (view == null) {
 			return null;
@@ -155,13 +354,22 @@ public class ResourceFS extends FileSystemProvider {
 
 	@Override
 	public FileStore getFileStore(Path path) throws IOException {
-		ResourceFileSystem fileSystem = getFileSystem(path.toUri());
+		ResourceFileSystem fileSystem = fileSystem(path);
 		if (fileSystem == null) {
 			return null;
 		}
 		return fileSystem.fileStore;
 	}
 
+	// the path's own file system, null once closed; no uri is built and no map is consulted
+	static ResourceFileSystem fileSystem(Path path) {
+		if (!(path instanceof ResourcePath)) {
+			throw new ProviderMismatchException();
+		}
+		ResourceFileSystem fileSystem = ((ResourcePath) path).fileSystem;
+		return fileSystem.closed ? null : fileSystem;
+	}
+
 	@Override
 	public ResourceFileSystem getFileSystem(URI uri) {
 		if (!SCHEME.equals(uri.getScheme())) {
@@ -202,7 +410,7 @@ public class ResourceFS extends FileSystemProvider {
 			return false;
 		}
 
-		if (Arrays.equals(urLsPathA.path, urLsPathB.path)) {
+		if (Arrays.equals(urLsPathA.segments, urLsPathB.segments)) {
 			return true;
 		}
 
@@ -218,10 +426,23 @@ public class ResourceFS extends FileSystemProvider {
 	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
 		throws IOException {
 
-		ResourceFileSystem fileSystem = getFileSystem(path.toUri());
+		ResourceFileSystem fileSystem = fileSystem(path);
 		if (fileSystem == null) {
 			return null;
 		}
+
+		ResourceAttributeView view = lookup(path);
+
+		if (!view.attributes.isRegularFile()) {
+			throw new IOException("Path is not a file");
+		}
+
+		ByteBuffer slice = ((ResourceFileAttributes) view.attributes).slice();
+		if (slice != null) {
+			fileSystem.record(view.resourcePath);
+			return new ResourceBufferChannel(slice);
+		}
+
 		return new ResourceReadOnlyChannel(path, options);
 	}
 
@@ -233,6 +454,16 @@ public class ResourceFS extends FileSystemProvider {
 			throw new IOException("invalid Path dir " + dir);
 		}
 
+		ResourcePath resourcePath = (ResourcePath) dir;
+		ResourceFileSystem fileSystem = resourcePath.fileSystem;
+
+		if (!resourcePath.toAbsolutePath()
+			.equals(fileSystem.basePath) && !lookup(dir).attributes.isDirectory()) {
+			throw new NotDirectoryException(dir.toString());
+		}
+
+		Collection<ResourceAttributeView> entries = fileSystem.fileStore.list(resourcePath);
+
 		return new DirectoryStream<Path>() {
 
 			private volatile boolean closed = false;
@@ -248,10 +479,16 @@ public class ResourceFS extends FileSystemProvider {
 					throw new IllegalStateException("Directory stream is closed");
 				}
 
-				List<Path> matches = getFileSystem(dir.toUri()).fileStore.views.keySet()
-					.stream()
-					.filter(path -> path.startsWith(dir) && (path.getNameCount() == (dir.getNameCount() + 1)))
-					.map(Path.class::cast)
+				List<Path> matches = entries.stream()
+					.map(ResourceAttributeView::getPath)
+					.filter(path -> {
+						try {
+							return filter == null || filter.accept(path);
+						}
+						catch (IOException e) {
+							throw new DirectoryIteratorException(e);
+						}
+					})
 					.collect(Collectors.toList());
 
 				return matches.iterator();
@@ -264,32 +501,37 @@ public class ResourceFS extends FileSystemProvider {
 		if (!SCHEME.equals(uri.getScheme())) {
 			throw new IOException("URLsFS requires scheme " + SCHEME);
 		}
-		return fileSystems.compute(
-			Objects.requireNonNull(uri.getAuthority(), "URLsFS requires authority to be non-null"),
-			(auth, existing) -> {
-			if (existing != null) {
-				throw new FileSystemAlreadyExistsException(uri.toString());
-			}
-				return new ResourceFileSystem(this, auth, env);
-		});
+		String authority = Objects.requireNonNull(uri.getAuthority(), "URLsFS requires authority to be non-null");
+		if (fileSystems.containsKey(authority)) {
+			throw new FileSystemAlreadyExistsException(uri.toString());
+		}
+
+		// mounted outside the map, which is only locked to claim the authority; a racing loser is
+		// closed again
+		ResourceFileSystem fileSystem = new ResourceFileSystem(this, authority, env);
+		if (fileSystems.putIfAbsent(authority, fileSystem) != null) {
+			fileSystem.close();
+			throw new FileSystemAlreadyExistsException(uri.toString());
+		}
+		return fileSystem;
 	}
 
 	@Override
 	public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
-		ResourceFileSystem fileSystem = getFileSystem(path.toUri());
+		ResourceFileSystem fileSystem = fileSystem(path);
 		if (fileSystem == null) {
 			return null;
 		}
 
-		ResourcePath resourcePath = (ResourcePath) path;
-
-		ResourceAttributeView urLsFileAttributeView = fileSystem.fileStore.views.get(resourcePath);
+		ResourceAttributeView urLsFileAttributeView = lookup(path);
 
 		if (!urLsFileAttributeView.attributes.isRegularFile()) {
 			throw new IOException("Path is not a file");
 		}
 
-		return ((ResourceFileAttributes) urLsFileAttributeView.attributes).url.openStream();
+		fileSystem.record(urLsFileAttributeView.resourcePath);
+
+		return ((ResourceFileAttributes) urLsFileAttributeView.attributes).openStream();
 	}
 
 	@Override
@@ -306,39 +548,50 @@ public class ResourceFS extends FileSystemProvider {
 			return null;
 		}
 
-		ResourcePath resourcePath = (ResourcePath) path;
-
-		ResourceFileSystem fileSystem = getFileSystem(resourcePath.uri);
-		if (fileSystem == null) {
-			return null;
-		}
-
-		ResourceAttributeView view = fileSystem.fileStore.views.get(resourcePath);
-
-		if (view == null) {
-			return null;
-		}
-
-		return type.cast(view.getAttributes());
+		return type.cast(lookup(path).getAttributes());
 	}
 
 	@Override
 	public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
-		BasicFileAttributes basicFileAttributes = readAttributes(path, BasicFileAttributes.class, options);
+		String viewName = ResourceAttributeView.BASIC;
+		int colon = attributes.indexOf(':');
+		if (colon > -1) {
+			viewName = attributes.substring(0, colon);
+			attributes = attributes.substring(colon + 1);
+		}
 
-		if ((basicFileAttributes == null) || (!attributes.startsWith("basic:") && attributes.contains(":"))) {
-			return Collections.emptyMap();
+		if (!ResourceFileSystem.supportedViews.contains(viewName)) {
+			throw new UnsupportedOperationException("View '" + viewName + "' not available");
 		}
 
-		if (attributes.startsWith("basic:")) {
-			attributes = attributes.substring(6);
+		ResourceAttributeView view = lookup(path);
+		Map<String, Object> all = view.readAttributes(viewName);
+
+		if ("*".equals(attributes)) {
+			return all;
 		}
 
 		Map<String, Object> map = new HashMap<>();
 
-//		for (String it : attributes.split("\\s*,\\s*")) {
-			// TODO
-//		}
+		for (String it : attributes.split("\\s*,\\s*")) {
+			if ("*".equals(it)) {
+				map.putAll(all);
+			}
+			else if (all.containsKey(it)) {
+				map.put(it, all.get(it));
+			}
+			else if (ResourceAttributeView.RESOURCE.equals(viewName) && ResourceAttributeView.AGGREGATES.contains(it)) {
+				// lists the subtree once when it was not yet
+				map.put(it, view.aggregate(it));
+			}
+			else if (ResourceAttributeView.RESOURCE.equals(viewName) && ResourceAttributeView.DIGEST.equals(it)) {
+				// reads the content, so only when asked for by name
+				map.put(it, view.digest());
+			}
+			else {
+				throw new IllegalArgumentException("'" + it + "' not recognized");
+			}
+		}
 
 		return map;
 	}
@@ -353,4 +606,30 @@ public class ResourceFS extends FileSystemProvider {
 		return SCHEME + ":";
 	}
 
+	ResourceAttributeView lookup(Path path) throws IOException {
+		if (!(path instanceof ResourcePath)) {
+			throw new ProviderMismatchException();
+		}
+
+		ResourcePath resourcePath = (ResourcePath) path;
+
+		ResourceAttributeView cached = resourcePath.view;
+		if (cached != null && !resourcePath.fileSystem.closed) {
+			return cached;
+		}
+
+		ResourceFileSystem fileSystem = fileSystem(resourcePath);
+		if (fileSystem == null) {
+			throw new ClosedFileSystemException();
+		}
+
+		ResourceAttributeView view = fileSystem.fileStore.lookup(resourcePath);
+
+		if (view == null) {
+			throw new NoSuchFileException(path.toString());
+		}
+
+		return view;
+	}
+
 }
@@ -17,10 +17,22 @@
 package com.github.rotty3000.resourcefs;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
 
 class ResourceFileAttributes implements BasicFileAttributes {
 
@@ -29,19 +41,162 @@ class ResourceFileAttributes implements BasicFileAttributes {
 	final FileTime	lastModifiedTime;
 	final FileTime	creationTime;
 	final long		size;
+	final ByteBuffer	buffer;
+	// deflated content, inflated on every open
+	final ByteBuffer	deflated;
+	final long		crc;
+	final List<URL>	shadowed	= new CopyOnWriteArrayList<>();
+	// position of the source in mount order, lower wins
+	int				priority;
+	// computed on first request, see ResourceDigests
+	volatile ResourceDigests	digests;
+	// content read ahead of time from an access trace, handed out once, see ResourceContents
+	volatile ByteBuffer			prewarmed;
+
+	ResourceFileAttributes(ResourcePath resourcePath, ByteBuffer buffer, long lastModified) {
+		this.resourcePath = resourcePath;
+		this.url = null;
+		this.buffer = buffer.slice()
+			.asReadOnlyBuffer();
+		this.deflated = null;
+		this.size = this.buffer.remaining();
+		this.crc = -1;
+		this.lastModifiedTime = FileTime.fromMillis(lastModified);
+		this.creationTime = this.lastModifiedTime;
+	}
+
+	ResourceFileAttributes(ResourcePath resourcePath, ByteBuffer deflated, long size, long lastModified) {
+		this.resourcePath = resourcePath;
+		this.url = null;
+		this.buffer = null;
+		this.deflated = deflated.slice()
+			.asReadOnlyBuffer();
+		this.size = size;
+		this.crc = -1;
+		this.lastModifiedTime = FileTime.fromMillis(lastModified);
+		this.creationTime = this.lastModifiedTime;
+	}
+
+	ResourceFileAttributes(ResourcePath resourcePath, URL url, ZipEntry entry) {
+		this.resourcePath = resourcePath;
+		this.url = url;
+		this.buffer = null;
+		this.deflated = null;
+		this.size = entry.getSize();
+		this.crc = entry.getCrc();
+		this.lastModifiedTime = (entry.getLastModifiedTime() != null) ? entry.getLastModifiedTime()
+			: FileTime.fromMillis(entry.getTime());
+		this.creationTime = (entry.getCreationTime() != null) ? entry.getCreationTime() : this.lastModifiedTime;
+	}
+
+	// as recorded in a prebuilt index
+	ResourceFileAttributes(ResourcePath resourcePath, URL url, long size, long crc, long lastModified, long creation) {
+		this.resourcePath = resourcePath;
+		this.url = url;
+		this.buffer = null;
+		this.deflated = null;
+		this.size = size;
+		this.crc = crc;
+		this.lastModifiedTime = FileTime.fromMillis(lastModified);
+		this.creationTime = FileTime.fromMillis(creation);
+	}
+
+	ResourceFileAttributes(ResourcePath resourcePath, URL url, BasicFileAttributes attributes) {
+		this.resourcePath = resourcePath;
+		this.url = url;
+		this.buffer = null;
+		this.deflated = null;
+		this.size = attributes.size();
+		this.crc = -1;
+		this.lastModifiedTime = attributes.lastModifiedTime();
+		this.creationTime = attributes.creationTime();
+	}
 
 	ResourceFileAttributes(ResourcePath resourcePath, URL url) {
 		this.resourcePath = resourcePath;
 		this.url = url;
+		this.buffer = null;
+		this.deflated = null;
+		this.crc = -1;
 
+		// probing the headers connects, so it waits its turn like any other open
+		ResourceScheduler.Permit permit = null;
+		URLConnection connection = null;
 		try {
-			URLConnection connection = this.url.openConnection();
+			permit = resourcePath.fileSystem.acquire(url.getProtocol());
+			connection = this.url.openConnection();
 			this.lastModifiedTime = FileTime.fromMillis(connection.getLastModified());
 			this.creationTime = FileTime.fromMillis(connection.getDate());
 			this.size = connection.getContentLengthLong();
 		} catch (IOException e) {
 			throw ResourceFS.thro(e);
 		}
+		finally {
+			if (connection instanceof HttpURLConnection) {
+				((HttpURLConnection) connection).disconnect();
+			}
+			if (permit != null) {
+				permit.close();
+			}
+		}
+	}
+
+	// a private view of the in-memory content, positioned at 0
+	ByteBuffer slice() {
+		return (buffer == null) ? null : buffer.duplicate();
+	}
+
+	InputStream openStream() throws IOException {
+		return openStream(true);
+	}
+
+	// without taking the prewarmed content it is left for the next reader, e.g. when only digested
+	InputStream openStream(boolean takePrewarmed) throws IOException {
+		if (buffer != null) {
+			return new ResourceBufferInputStream(slice());
+		}
+
+		if (deflated != null) {
+			return new InflaterInputStream(new ResourceBufferInputStream(deflated.duplicate()));
+		}
+
+		ByteBuffer warm = prewarmed;
+		if (warm != null) {
+			if (takePrewarmed) {
+				prewarmed = null;
+			}
+			// may be shared with other paths of the same content
+			return new ResourceBufferInputStream(warm.duplicate());
+		}
+
+		int readAhead = resourcePath.fileSystem.readAhead;
+		Path local = localPath();
+
+		if (local != null) {
+			ResourceScheduler.Permit permit = resourcePath.fileSystem.acquire(url.getProtocol());
+			try {
+				return new ResourceInputStream(FileChannel.open(local, StandardOpenOption.READ), null, size, readAhead,
+					permit);
+			}
+			catch (IOException | RuntimeException e) {
+				permit.close();
+				throw e;
+			}
+		}
+
+		return new ResourceInputStream(null, resourcePath.fileSystem.openStream(url), size, readAhead, null);
+	}
+
+	Path localPath() {
+		if (url == null || !"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			return Paths.get(url.toURI());
+		}
+		catch (URISyntaxException | IllegalArgumentException e) {
+			return null;
+		}
 	}
 
 	@Override
@@ -17,13 +17,35 @@
 package com.github.rotty3000.resourcefs;
 
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
 
 public class ResourceFileStore extends FileStore {
 
@@ -32,43 +54,590 @@ public class ResourceFileStore extends FileStore {
 	final ResourceFileSystem	fileSystem;
 	final ResourceFileStoreAttributeView	fileStoreAttributeView	= new ResourceFileStoreAttributeView();
 	final Map<ResourcePath, ResourceAttributeView>	views					= new ConcurrentHashMap<>();
-	final LongAdder								totalSize				= new LongAdder();
+	final Map<ResourcePath, Set<ResourceAttributeView>>	children			= new ConcurrentHashMap<>();
+	final ResourceDirAttributes					root;
+	// the root is not indexed, it has no parent to be listed in
+	private final ResourceAttributeView			rootView;
+	volatile ResourcePathFilter					filter;
+	// mounts share it, a resize takes it alone so that every path indexed into the old filter is
+	// visible in views when the new one is built
+	private final ReentrantReadWriteLock		indexing				= new ReentrantReadWriteLock();
 
-	ResourceFileStore(ResourceFileSystem fileSystem) {
+	// directories backed by file: URLs whose children have not been listed yet
+	final Map<ResourcePath, Pending>			pending					= new ConcurrentHashMap<>();
+
+	// archive url -> the provider's shared copy, held until this file system closes
+	private final Map<String, ResourceArchives.Archive>	archives	= new ConcurrentHashMap<>();
+
+	// bodies and mappings taken from the provider's pools, which only hold them weakly, kept alive
+	// until this file system closes
+	private final Queue<ByteBuffer>				shared		= new ConcurrentLinkedQueue<>();
+
+	private volatile ExecutorService			expander;
+
+	// with a current prebuilt index the urls are not probed at all
+	ResourceFileStore(ResourceFileSystem fileSystem, ResourceIndex index) {
 		this.fileSystem = fileSystem;
-		this.fileSystem.urls.forEach(this::process);
+		this.root = new ResourceDirAttributes(fileSystem.basePath, null);
+		this.rootView = new ResourceAttributeView(fileSystem.basePath, root);
+		try {
+			if (index != null) {
+				mountIndex(index);
+			}
+			else {
+				for (int i = 0; i < fileSystem.urls.size(); i++) {
+					process(fileSystem.urls.get(i), i);
+				}
+			}
+			long mounted = System.currentTimeMillis();
+			int priority = fileSystem.urls.size();
+			for (Map.Entry<String, ByteBuffer> entry : fileSystem.buffers.entrySet()) {
+				ByteBuffer buffer = entry.getValue();
+				mount(entry.getKey(), null, priority++, current -> new ResourceFileAttributes(current, buffer, mounted));
+			}
+			if (fileSystem.image != null) {
+				mountImage(fileSystem.image, priority);
+			}
+			ResourcePathFilter newFilter = new ResourcePathFilter(views.size());
+			views.keySet().forEach(newFilter::add);
+			this.filter = newFilter;
+			if (fileSystem.expandEagerly && !pending.isEmpty()) {
+				expandInBackground();
+			}
+		}
+		catch (Throwable t) {
+			// gives back the archives acquired so far, also when an IOException was thrown through
+			close();
+			throw t;
+		}
+	}
+
+	boolean exists(String path) {
+		return lookup(path) != null;
+	}
+
+	ResourceAttributeView lookup(String path) {
+		if (!pending.isEmpty()) {
+			return lookup(new ResourcePath(fileSystem, path));
+		}
+		if (!filter.mightContain(path)) {
+			return null;
+		}
+		return views.get(new ResourcePath(fileSystem, path));
+	}
+
+	Collection<ResourceAttributeView> list(ResourcePath dir) {
+		dir = dir.toAbsolutePath();
+		expand(dir);
+		return children.getOrDefault(dir, Collections.emptySet());
+	}
+
+	ResourceAttributeView lookup(ResourcePath resourcePath) {
+		resourcePath = resourcePath.toAbsolutePath();
+		// a pending ancestor may still bring a source that outranks what is indexed
+		expandTowards(resourcePath);
+		return indexed(resourcePath);
+	}
+
+	private ResourceAttributeView indexed(ResourcePath resourcePath) {
+		if (resourcePath.segments.length == 0) {
+			return rootView;
+		}
+		if (!filter.mightContain(resourcePath)) {
+			return null;
+		}
+		return views.get(resourcePath);
+	}
+
+	void close() {
+		ExecutorService executor = expander;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		archives.values()
+			.forEach(fileSystem.provider.archives::release);
+		archives.clear();
+		shared.clear();
+	}
+
+	ByteBuffer hold(ByteBuffer buffer) {
+		shared.add(buffer);
+		return buffer;
+	}
+
+	int held() {
+		return shared.size();
+	}
+
+	private void process(URL url, int priority) {
+		Path directory = directory(url);
+
+		if (directory != null) {
+			ResourcePath dir = fileSystem.overlay ? fileSystem.basePath : new ResourcePath(fileSystem, url.getPath());
+			if (!fileSystem.overlay) {
+				mount(url.getPath(), null, priority, null);
+			}
+			pending.computeIfAbsent(dir, key -> new Pending())
+				.add(directory, priority);
+		}
+		else if (!fileSystem.overlay) {
+			mount(url.getPath(), url, priority, current -> attributes(current, url));
+		}
+		else if (isArchive(url)) {
+			expand(url, priority);
+		}
+		else {
+			mount(entryName(url), url, priority, current -> attributes(current, url));
+		}
 	}
 
-	private void process(URL url) {
-		ResourcePath original = new ResourcePath(fileSystem, url.getPath());
-		String path = ResourceFS.SEPARATOR;
+	// lists a directory backed by file: URLs the first time it is needed, concurrent callers wait
+	// for the first one rather than listing again
+	void expand(ResourcePath dir) {
+		Pending node = pending.get(dir);
+		if (node == null) {
+			return;
+		}
 
-		for (int i = 0; i < original.segments.length; i++) {
-			path += original.segments[i];
-			ResourcePath current = new ResourcePath(fileSystem, path);
-			ResourcePath parent = current.getParent();
-			if (parent == null) {
-				parent = fileSystem.basePath;
+		synchronized (node) {
+			if (node.expanded) {
+				return;
 			}
 
-			views.computeIfAbsent(current, key -> {
-				ResourceAttributeView view;
+			String prefix = (dir.segments.length == 0) ? ""
+				: ResourceFS.SEPARATOR + String.join(ResourceFS.SEPARATOR, dir.segments);
 
-				// last segment is the file
-				if (current.compareTo(original) == 0) {
-					view = new ResourceAttributeView(current, new ResourceFileAttributes(current, url));
-				} else {
-					view = new ResourceAttributeView(current, new ResourceDirAttributes(current));
+			for (Pending.Source source : node.sources()) {
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(source.directory)) {
+					for (Path child : stream) {
+						BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+						String name = prefix + ResourceFS.SEPARATOR + child.getFileName();
+
+						if (attributes.isDirectory()) {
+							mount(name, null, source.priority, null);
+							pending.computeIfAbsent(new ResourcePath(fileSystem, name), key -> new Pending())
+								.add(child, source.priority);
+						}
+						else {
+							URL url = child.toUri()
+								.toURL();
+							mount(name, url, source.priority,
+								current -> new ResourceFileAttributes(current, url, attributes));
+						}
+					}
+				}
+				catch (IOException e) {
+					throw ResourceFS.thro(e);
+				}
+			}
+
+			node.expanded = true;
+			pending.remove(dir, node);
+		}
+
+		resizeFilter();
+	}
+
+	// rebuilt larger once what was mounted after the initial build outgrew it
+	void resizeFilter() {
+		ResourcePathFilter current = filter;
+		// not from within a mount, the next caller resizes instead
+		if (current == null || views.size() <= current.capacity * 2 || indexing.getReadHoldCount() > 0) {
+			return;
+		}
+
+		indexing.writeLock()
+			.lock();
+		try {
+			current = filter;
+			if (views.size() > current.capacity * 2) {
+				ResourcePathFilter newFilter = new ResourcePathFilter(views.size() * 2);
+				views.keySet().forEach(newFilter::add);
+				filter = newFilter;
+			}
+		}
+		finally {
+			indexing.writeLock()
+				.unlock();
+		}
+	}
+
+	// drops a subtree mounted at runtime, e.g. an uninstalled bundle
+	void unmount(ResourcePath resourcePath) {
+		ResourceAttributeView view = views.get(resourcePath);
+		if (view == null) {
+			return;
+		}
+
+		if (view.attributes.isDirectory()) {
+			for (ResourceAttributeView child : new ArrayList<>(
+				children.getOrDefault(resourcePath, Collections.emptySet()))) {
+				unmount(child.resourcePath);
+			}
+			children.remove(resourcePath);
+		}
+
+		views.remove(resourcePath, view);
+		unindex(view, new ResourcePath(fileSystem, Arrays.copyOf(resourcePath.segments, resourcePath.segments.length - 1)));
+	}
+
+	private void expandTowards(ResourcePath resourcePath) {
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		ResourcePath ancestor = fileSystem.basePath;
+
+		for (int i = 0; i < resourcePath.segments.length; i++) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			expand(ancestor);
+			ancestor = new ResourcePath(fileSystem, Arrays.copyOfRange(resourcePath.segments, 0, i + 1));
+		}
+	}
+
+	private void expandInBackground() {
+		ExecutorService executor = ResourceFS.newExecutor("ResourceFS-expand", Runtime.getRuntime()
+			.availableProcessors());
+		AtomicInteger outstanding = new AtomicInteger();
+		expander = executor;
+		new ArrayList<>(pending.keySet()).forEach(dir -> expandInBackground(executor, outstanding, dir));
+	}
+
+	private void expandInBackground(ExecutorService executor, AtomicInteger outstanding, ResourcePath dir) {
+		outstanding.incrementAndGet();
+		executor.execute(() -> {
+			try {
+				expand(dir);
+				for (ResourceAttributeView child : children.getOrDefault(dir, Collections.emptySet())) {
+					if (pending.containsKey(child.resourcePath)) {
+						expandInBackground(executor, outstanding, child.resourcePath);
+					}
 				}
+			}
+			finally {
+				if (outstanding.decrementAndGet() == 0) {
+					executor.shutdown();
+				}
+			}
+		});
+	}
+
+	private void mountIndex(ResourceIndex index) {
+		for (ResourceIndex.Entry entry : index.entries) {
+			if (entry.url == null) {
+				mount(entry.name, null, entry.priority, null);
+				continue;
+			}
 
-				totalSize.add(view.size());
-				return view;
+			mount(entry.name, entry.url, entry.priority, current -> {
+				ResourceFileAttributes attributes = new ResourceFileAttributes(current, entry.url, entry.size, entry.crc,
+					entry.lastModified, entry.creation);
+				attributes.shadowed.addAll(entry.shadowed);
+				if (!entry.digests.isEmpty()) {
+					attributes.digests = new ResourceDigests(entry.size, entry.lastModified, entry.digests);
+				}
+				return attributes;
 			});
+		}
+	}
 
-			path += ResourceFS.SEPARATOR;
+	// one mapping of the image for the whole provider, every file is a view on it
+	private void mountImage(Path image, int priority) {
+		try {
+			ByteBuffer mapping = hold(fileSystem.provider.contents.map(image));
+
+			for (ResourceImage.Entry entry : ResourceImage.entries(mapping, image)) {
+				if (entry.isDirectory()) {
+					mount(entry.name, null, priority, null);
+					continue;
+				}
+
+				ByteBuffer content = entry.content(mapping);
+				mount(entry.name, null, priority,
+					current -> entry.isDeflated()
+						? new ResourceFileAttributes(current, content, entry.size, entry.lastModified)
+						: new ResourceFileAttributes(current, content, entry.lastModified));
+			}
+		}
+		catch (IOException e) {
+			throw ResourceFS.thro(e);
+		}
+	}
+
+	private static Path directory(URL url) {
+		if (!"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			Path path = Paths.get(url.toURI());
+			return Files.isDirectory(path) ? path : null;
+		}
+		catch (URISyntaxException | IllegalArgumentException e) {
+			return null;
 		}
 	}
 
+	private ResourceFileAttributes attributes(ResourcePath current, URL url) {
+		String spec = url.toExternalForm();
+		int separator = spec.indexOf("!/");
+
+		if ("jar".equals(url.getProtocol()) && separator > -1) {
+			ZipEntry entry = archive(spec.substring(4, separator)).entries.get(spec.substring(separator + 2));
+			if (entry != null) {
+				return new ResourceFileAttributes(current, url, entry);
+			}
+		}
+
+		return new ResourceFileAttributes(current, url);
+	}
+
+	// acquired outside the map, a racing mount of the same archive gives its reference back
+	private ResourceArchives.Archive archive(String spec) {
+		ResourceArchives.Archive archive = archives.get(spec);
+		if (archive != null) {
+			return archive;
+		}
+		archive = fileSystem.provider.archives.acquire(spec, fileSystem);
+		ResourceArchives.Archive existing = archives.putIfAbsent(spec, archive);
+		if (existing != null) {
+			fileSystem.provider.archives.release(archive);
+			return existing;
+		}
+		return archive;
+	}
+
+	private void expand(URL url, int priority) {
+		ResourceArchives.Archive archive = archive(url.toExternalForm());
+		Map<String, ZipEntry> resolved = (fileSystem.release > 0) ? archive.resolved(fileSystem.release, fileSystem)
+			: Collections.emptyMap();
+
+		for (ZipEntry entry : archive.entries.values()) {
+			if (entry.isDirectory()) {
+				mount(archive.segments(entry.getName()), null, priority, null);
+				continue;
+			}
+
+			// resolved below, versioned entries also stay reachable at their raw path under META-INF/versions
+			if (resolved.containsKey(entry.getName())) {
+				continue;
+			}
+
+			URL entryURL = archive.url(entry);
+			mount(archive.segments(entry.getName()), entryURL, priority,
+				current -> new ResourceFileAttributes(current, entryURL, entry));
+		}
+
+		resolved.forEach((name, winner) -> {
+			URL entryURL = archive.url(winner);
+			mount(archive.segments(name), entryURL, priority,
+				current -> new ResourceFileAttributes(current, entryURL, winner));
+		});
+	}
+
+	void mount(String name, URL url, int priority, Function<ResourcePath, ResourceFileAttributes> attributes) {
+		mount(ResourcePath.split(name), url, priority, attributes);
+	}
+
+	// the segments may be shared with other file systems and are never modified
+	void mount(String[] segments, URL url, int priority, Function<ResourcePath, ResourceFileAttributes> attributes) {
+		ResourcePath original = new ResourcePath(fileSystem, segments);
+		ResourcePath parentPath = fileSystem.basePath;
+
+		indexing.readLock()
+			.lock();
+		try {
+			for (int i = 0; i < original.segments.length; i++) {
+				ResourcePath current = (i == original.segments.length - 1) ? original
+					: new ResourcePath(fileSystem, Arrays.copyOf(original.segments, i + 1));
+				ResourcePath parent = parentPath;
+
+				// last segment is the file
+				if ((attributes != null) && (current == original)) {
+					views.compute(current, (key, existing) -> mountFile(current, parent, existing, url, priority, attributes));
+				}
+				else {
+					views.computeIfAbsent(current,
+						key -> index(new ResourceAttributeView(current, new ResourceDirAttributes(current, directory(parent))),
+							parent));
+				}
+
+				parentPath = current;
+			}
+		}
+		finally {
+			indexing.readLock()
+				.unlock();
+		}
+	}
+
+	private ResourceAttributeView mountFile(
+		ResourcePath current, ResourcePath parentPath, ResourceAttributeView existing, URL url, int priority,
+		Function<ResourcePath, ResourceFileAttributes> attributes) {
+
+		if (existing == null) {
+			ResourceFileAttributes fileAttributes = attributes.apply(current);
+			fileAttributes.priority = priority;
+			return index(new ResourceAttributeView(current, fileAttributes), parentPath);
+		}
+
+		if (!existing.attributes.isRegularFile()) {
+			return existing;
+		}
+
+		// earlier urls win, later ones at the same path are recorded as shadowed
+		ResourceFileAttributes winner = (ResourceFileAttributes) existing.attributes;
+		if (priority >= winner.priority) {
+			if (url != null) {
+				winner.shadowed.add(url);
+			}
+			return existing;
+		}
+
+		// a source with higher priority showed up late, e.g. from a lazily listed directory
+		ResourceFileAttributes fileAttributes = attributes.apply(current);
+		fileAttributes.priority = priority;
+		if (winner.url != null) {
+			fileAttributes.shadowed.add(winner.url);
+		}
+		fileAttributes.shadowed.addAll(winner.shadowed);
+
+		unindex(existing, parentPath);
+		return index(new ResourceAttributeView(current, fileAttributes), parentPath);
+	}
+
+	private ResourceAttributeView index(ResourceAttributeView view, ResourcePath parentPath) {
+		if (view.attributes.isRegularFile()) {
+			directory(parentPath).added(view.size(), view.attributes.lastModifiedTime()
+				.toMillis());
+		}
+		children.computeIfAbsent(parentPath, p -> ConcurrentHashMap.newKeySet())
+			.add(view);
+		ResourcePathFilter current = filter;
+		if (current != null) {
+			current.add(view.resourcePath);
+		}
+		return view;
+	}
+
+	private void unindex(ResourceAttributeView view, ResourcePath parentPath) {
+		Set<ResourceAttributeView> siblings = children.get(parentPath);
+		if (siblings != null) {
+			siblings.remove(view);
+		}
+		if (view.attributes.isRegularFile()) {
+			ResourceDirAttributes parent = directory(parentPath);
+			if (parent.removed(view.size(), view.attributes.lastModifiedTime()
+				.toMillis())) {
+				newest(parent);
+			}
+		}
+		view.resourcePath.view = null;
+	}
+
+	// aggregates only cover what was listed, so a subtree with pending directories is listed once
+	// before they are first read
+	ResourceDirAttributes aggregates(ResourcePath dir) {
+		ResourceDirAttributes attributes = directory(dir);
+		if (!attributes.complete) {
+			expandSubtree(dir);
+		}
+		return attributes;
+	}
+
+	// whether the aggregates are already there, with nothing pending below the directory
+	boolean expanded(ResourcePath dir) {
+		ResourceDirAttributes attributes = directory(dir);
+		if (!attributes.complete && pending.keySet()
+			.stream()
+			.noneMatch(path -> path.startsWith(dir))) {
+			attributes.complete = true;
+		}
+		return attributes.complete;
+	}
+
+	private void expandSubtree(ResourcePath dir) {
+		ResourceDirAttributes attributes = directory(dir);
+		if (!pending.isEmpty()) {
+			expand(dir);
+			for (ResourceAttributeView child : children.getOrDefault(dir, Collections.emptySet())) {
+				if (child.attributes.isDirectory() && !((ResourceDirAttributes) child.attributes).complete) {
+					expandSubtree(child.resourcePath);
+				}
+			}
+		}
+		attributes.complete = true;
+	}
+
+	// the directory holding the aggregates for a path's subtree
+	private ResourceDirAttributes directory(ResourcePath dir) {
+		if (dir.segments.length == 0) {
+			return root;
+		}
+		return (ResourceDirAttributes) views.get(dir).attributes;
+	}
+
+	// newest mtime recomputed from the direct children, from the given directory up to the root
+	private void newest(ResourceDirAttributes dir) {
+		for (; dir != null; dir = dir.parent) {
+			long newest = 0;
+			for (ResourceAttributeView child : children.getOrDefault(dir.resourcePath, Collections.emptySet())) {
+				newest = Math.max(newest, child.attributes.isDirectory()
+					? ((ResourceDirAttributes) child.attributes).newestModified.get()
+					: child.attributes.lastModifiedTime()
+						.toMillis());
+			}
+			dir.newestModified.set(newest);
+		}
+	}
+
+	static class Pending {
+
+		static class Source {
+
+			final Path	directory;
+			final int	priority;
+
+			Source(Path directory, int priority) {
+				this.directory = directory;
+				this.priority = priority;
+			}
+
+		}
+
+		private final List<Source>	sources	= new ArrayList<>();
+		volatile boolean			expanded;
+
+		synchronized void add(Path directory, int priority) {
+			sources.add(new Source(directory, priority));
+		}
+
+		synchronized List<Source> sources() {
+			List<Source> sorted = new ArrayList<>(sources);
+			sorted.sort(Comparator.comparingInt(source -> source.priority));
+			return sorted;
+		}
+
+	}
+
+	static boolean isArchive(URL url) {
+		String path = url.getPath().toLowerCase();
+
+		return !"jar".equals(url.getProtocol()) && (path.endsWith(".jar") || path.endsWith(".zip"));
+	}
+
+	static String entryName(URL url) {
+		if (!"jar".equals(url.getProtocol())) {
+			return url.getPath();
+		}
+
+		String spec = url.getPath();
+		int separator = spec.indexOf("!/");
+
+		return (separator < 0) ? spec : spec.substring(separator + 2);
+	}
+
 	@Override
 	public String name() {
 		return NAME;
@@ -86,7 +655,7 @@ public class ResourceFileStore extends FileStore {
 
 	@Override
 	public long getTotalSpace() throws IOException {
-		return totalSize.longValue();
+		return root.totalSize.get();
 	}
 
 	@Override
@@ -106,7 +675,7 @@ public class ResourceFileStore extends FileStore {
 
 	@Override
 	public boolean supportsFileAttributeView(String name) {
-		return "basic".equals(name);
+		return ResourceFileSystem.supportedViews.contains(name);
 	}
 
 	@Override
@@ -119,7 +688,34 @@ public class ResourceFileStore extends FileStore {
 
 	@Override
 	public Object getAttribute(String attribute) throws IOException {
-		return null;
+		switch (attribute) {
+			case "totalSize" :
+				return aggregates(fileSystem.basePath).totalSize.get();
+			case "fileCount" :
+				return aggregates(fileSystem.basePath).fileCount.get();
+			case "newestModifiedTime" :
+				return FileTime.fromMillis(aggregates(fileSystem.basePath).newestModified.get());
+			case "mirrors" :
+				return (fileSystem.mirrors == null) ? Collections.emptyMap() : fileSystem.mirrors.stats();
+			case "io" :
+				return fileSystem.provider.scheduler.stats(fileSystem.io);
+			case "ioSchemes" :
+				return fileSystem.provider.scheduler.schemeStats();
+			case "archives" :
+				return archiveStats();
+			case "contents" :
+				return fileSystem.provider.contents.stats();
+			default :
+				return null;
+		}
+	}
+
+	// archives this file system holds, and the provider's open archives and central directory reads
+	private Map<String, Object> archiveStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("held", archives.size());
+		stats.putAll(fileSystem.provider.archives.stats());
+		return stats;
 	}
 
 }
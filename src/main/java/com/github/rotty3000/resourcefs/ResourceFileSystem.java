@@ -17,7 +17,9 @@
 package com.github.rotty3000.resourcefs;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
@@ -26,35 +28,136 @@ import java.nio.file.WatchService;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 class ResourceFileSystem extends FileSystem {
 
-	static final Set<String>	supportedViews	= Collections.singleton("basic");
+	static final Set<String>	supportedViews	= Set.of(ResourceAttributeView.BASIC, ResourceAttributeView.RESOURCE);
+
+	static boolean option(Map<String, ?> env, String key) {
+		Object value = env.get(key);
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		return (value != null) && Boolean.parseBoolean(value.toString());
+	}
+
+	static int option(Map<String, ?> env, String key, int defaultValue) {
+		Object value = env.get(key);
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		return (value != null) ? Integer.parseInt(value.toString()) : defaultValue;
+	}
+
+	static List<String> options(Map<String, ?> env, String key, List<String> defaultValue) {
+		Object value = env.get(key);
+		if (value instanceof Collection) {
+			return ((Collection<?>) value).stream()
+				.map(Object::toString)
+				.collect(Collectors.toList());
+		}
+		if (value != null) {
+			return Arrays.asList(value.toString()
+				.split("\\s*,\\s*"));
+		}
+		return defaultValue;
+	}
+
+	static int release(Map<String, ?> env) {
+		Object value = env.get(ResourceFS.MULTI_RELEASE);
+		if (value == null || Boolean.FALSE.equals(value) || "false".equals(value)) {
+			return 0;
+		}
+		if (Boolean.TRUE.equals(value) || "true".equals(value) || "runtime".equals(value)) {
+			return Runtime.version()
+				.feature();
+		}
+		return option(env, ResourceFS.MULTI_RELEASE, 0);
+	}
 
 	final ResourceFS	provider;
 	final String authority;
 	final List<URL>	urls;
+	final Map<String, ByteBuffer>	buffers;
+	// packed image served from one mapping, see ResourceImage
+	final Path						image;
+	final boolean	overlay;
+	final int		readAhead;
+	final boolean	expandEagerly;
+	final List<String>	digestAlgorithms;
+	final ResourceTrace	trace;
+	// target runtime for multi-release archives, 0 when they are indexed as plain archives
+	final int			release;
+	final ResourceMirrors	mirrors;
+	// this file system's share of the provider's open sources, see ResourceScheduler
+	final ResourceScheduler.Tenant	io;
+	// only set when bundles are mounted from an OSGi framework
+	final ResourceBundles	bundles;
 	final ResourcePath			basePath;
 	final ResourceFileStore			fileStore;
 	final List<FileStore>	fileStores;
+	volatile boolean		closed;
 
 	@SuppressWarnings("unchecked")
 	public ResourceFileSystem(ResourceFS provider, String authority, Map<String, ?> env) {
 		this.provider = provider;
 		this.authority = authority;
-		Object urlsObject = Objects.requireNonNull(env.get(ResourceFS.URLS));
+		Object urlsObject = env.get(ResourceFS.URLS);
+		Object buffersObject = env.get(ResourceFS.BUFFERS);
+		Object imageObject = env.get(ResourceFS.IMAGE);
+		if (urlsObject == null && buffersObject == null && imageObject == null && env.get(ResourceFS.BUNDLES) == null) {
+			throw new NullPointerException(ResourceFS.URLS + ", " + ResourceFS.BUFFERS + ", " + ResourceFS.IMAGE
+				+ " or " + ResourceFS.BUNDLES + " is required");
+		}
+		if (urlsObject == null) {
+			urlsObject = Collections.emptyList();
+		}
+		if (buffersObject == null) {
+			buffersObject = Collections.emptyMap();
+		}
 		this.urls = new ArrayList<>(Collections.checkedCollection((Collection<URL>) urlsObject, URL.class));
+		this.buffers = new LinkedHashMap<>(
+			Collections.checkedMap((Map<String, ByteBuffer>) buffersObject, String.class, ByteBuffer.class));
+		this.image = (imageObject == null) ? null : ResourceImage.path(imageObject);
+		this.overlay = option(env, ResourceFS.OVERLAY);
+		this.readAhead = option(env, ResourceFS.READ_AHEAD, 8192);
+		this.expandEagerly = option(env, ResourceFS.EXPAND_EAGERLY);
+		this.release = release(env);
+		this.mirrors = ResourceMirrors.create(env);
+		this.io = provider.scheduler.tenant(option(env, ResourceFS.IO_LIMIT, 0), env.get(ResourceFS.SCHEME_LIMITS),
+			option(env, ResourceFS.IO_TIMEOUT, ResourceScheduler.DEFAULT_TIMEOUT_MILLIS));
+		this.digestAlgorithms = options(env, ResourceFS.DIGEST_ALGORITHMS, ResourceDigests.DEFAULT_ALGORITHMS);
 		this.basePath = new ResourcePath(this, ResourceFS.SEPARATOR);
-		this.fileStore = new ResourceFileStore(this);
 		this.fileStores = new ArrayList<>();
-		fileStores.add(fileStore);
+		try {
+			this.fileStore = new ResourceFileStore(this, ResourceIndex.load(this, env.get(ResourceFS.INDEX)));
+			fileStores.add(fileStore);
+			// checked here so that ResourceBundles, and with it the osgi api, is not resolved otherwise
+			Object bundleContext = env.get(ResourceFS.BUNDLES);
+			this.bundles = (bundleContext != null) ? ResourceBundles.create(this, bundleContext) : null;
+			this.trace = ResourceTrace.create(this, env);
+			if (trace != null) {
+				trace.prewarm();
+			}
+		}
+		catch (Throwable t) {
+			// a mount failing part way gives back the archives and the tenant it took so far
+			try {
+				close();
+			}
+			catch (IOException | RuntimeException e) {
+				t.addSuppressed(e);
+			}
+			throw t;
+		}
 	}
 
 	@Override
@@ -64,12 +167,65 @@ class ResourceFileSystem extends FileSystem {
 
 	@Override
 	public void close() throws IOException {
+		closed = true;
 		provider.fileSystems.remove(authority, this);
+		try {
+			if (bundles != null) {
+				bundles.close();
+			}
+			// null when the mount itself failed
+			if (fileStore != null) {
+				fileStore.close();
+			}
+			if (trace != null) {
+				trace.close();
+			}
+		}
+		finally {
+			// waiters and permits are given back even when the trace could not be written
+			provider.scheduler.close(io);
+		}
+	}
+
+	InputStream openStream(URL url) throws IOException {
+		return openStream(url, url::openStream);
+	}
+
+	// direct opens the url where no mirror is configured for it; mirrored urls take a permit for
+	// each attempt, see ResourceMirrors
+	InputStream openStream(URL url, Source direct) throws IOException {
+		if (mirrors != null) {
+			return mirrors.open(url, this, direct);
+		}
+		return open(url.getProtocol(), direct);
+	}
+
+	// the stream holds a permit for the scheme until it is closed
+	InputStream open(String scheme, Source source) throws IOException {
+		ResourceScheduler.Permit permit = acquire(scheme);
+		try {
+			return provider.scheduler.guard(permit, source.open());
+		}
+		catch (IOException | RuntimeException e) {
+			permit.close();
+			throw e;
+		}
+	}
+
+	// waits its turn when this file system or the scheme is at its limit
+	ResourceScheduler.Permit acquire(String scheme) throws IOException {
+		return provider.scheduler.acquire(io, scheme);
+	}
+
+	void record(ResourcePath resourcePath) {
+		if (trace != null) {
+			trace.record(resourcePath);
+		}
 	}
 
 	@Override
 	public boolean isOpen() {
-		return provider.fileSystems.containsValue(this);
+		return !closed;
 	}
 
 	@Override
@@ -84,10 +240,10 @@ class ResourceFileSystem extends FileSystem {
 
 	@Override
 	public Iterable<Path> getRootDirectories() {
-		return fileStore.views.keySet()
+		return fileStore.list(basePath)
 			.stream()
-			.filter(resourcePath -> resourcePath.getParent() == null)
-			.map(Path.class::cast)
+			.filter(view -> view.attributes.isDirectory())
+			.map(ResourceAttributeView::getPath)
 			.collect(Collectors.toList());
 	}
 
@@ -101,12 +257,10 @@ class ResourceFileSystem extends FileSystem {
 		return supportedViews;
 	}
 
+	// a path without a leading separator is relative
 	@Override
 	public ResourcePath getPath(String first, String... more) {
-		if (first == null || ResourceFS.SEPARATOR.equals(first)) {
-			return null;
-		}
-		return new ResourcePath(this, ResourceFS.join(first, more));
+		return new ResourcePath(this, ResourcePath.split(ResourceFS.join(first, more)), first.startsWith(ResourceFS.SEPARATOR));
 	}
 
 	@Override
@@ -130,4 +284,10 @@ class ResourceFileSystem extends FileSystem {
 		throw new UnsupportedOperationException();
 	}
 
-}
\ No newline at end of file
+	interface Source {
+
+		InputStream open() throws IOException;
+
+	}
+
+}
@@ -0,0 +1,351 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+// a whole file system in one file: a header, every file's content back to back in walk order,
+// then a front coded index holding each entry's offset into the content
+class ResourceImage {
+
+	static final int	MAGIC		= 0x52465349;
+	static final int	VERSION		= 1;
+	// magic, version, entry count, index offset
+	static final int	HEADER		= 20;
+
+	static final int	DIRECTORY	= 1;
+	static final int	DEFLATED	= 2;
+
+	static class Entry {
+
+		final String	name;
+		final int		flags;
+		final long		lastModified;
+		final long		size;
+		final long		offset;
+		final long		length;
+
+		Entry(String name, int flags, long lastModified, long size, long offset, long length) {
+			this.name = name;
+			this.flags = flags;
+			this.lastModified = lastModified;
+			this.size = size;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		boolean isDirectory() {
+			return (flags & DIRECTORY) != 0;
+		}
+
+		boolean isDeflated() {
+			return (flags & DEFLATED) != 0;
+		}
+
+		// the stored bytes, a view on the mapping
+		ByteBuffer content(ByteBuffer image) {
+			return image.duplicate()
+				.position((int) offset)
+				.limit((int) (offset + length))
+				.slice();
+		}
+
+	}
+
+	static void write(ResourceFileSystem fileSystem, ResourcePath root, Path target, boolean compress)
+		throws IOException {
+
+		// written aside and moved in place so a mount never maps half an image
+		Path parent = target.toAbsolutePath()
+			.getParent();
+		Files.createDirectories(parent);
+		Path temp = Files.createTempFile(parent, target.getFileName()
+			.toString(), ".tmp");
+
+		try {
+			List<Entry> entries = new ArrayList<>();
+			// content identity -> the entry that stored it first
+			Map<ResourceContents.Digest, Entry> stored = new HashMap<>();
+
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				out.position(HEADER);
+
+				Deque<ResourceAttributeView> stack = new ArrayDeque<>();
+				if (root.segments.length == 0) {
+					children(fileSystem, root).forEach(stack::push);
+				}
+				else {
+					stack.push(fileSystem.provider.lookup(root));
+				}
+
+				while (!stack.isEmpty()) {
+					ResourceAttributeView view = stack.pop();
+					String name = ResourceFS.SEPARATOR + String.join(ResourceFS.SEPARATOR, view.resourcePath.segments);
+					long lastModified = view.attributes.lastModifiedTime()
+						.toMillis();
+
+					if (view.attributes.isDirectory()) {
+						entries.add(new Entry(name, DIRECTORY, lastModified, 0, out.position(), 0));
+						children(fileSystem, view.resourcePath).forEach(stack::push);
+					}
+					else {
+						entries.add(writeContent((ResourceFileAttributes) view.attributes, name, lastModified, out,
+							compress, stored));
+					}
+				}
+
+				long indexOffset = out.position();
+				writeIndex(out, entries);
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				header.putInt(MAGIC)
+					.putInt(VERSION)
+					.putInt(entries.size())
+					.putLong(indexOffset)
+					.flip();
+				out.write(header, 0);
+			}
+
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	// reversed by name so the stack pops them in name order
+	private static List<ResourceAttributeView> children(ResourceFileSystem fileSystem, ResourcePath dir) {
+		List<ResourceAttributeView> children = new ArrayList<>(fileSystem.fileStore.list(dir));
+		children.sort(Comparator.comparing((ResourceAttributeView view) -> view.resourcePath.toString())
+			.reversed());
+		return children;
+	}
+
+	private static Entry writeContent(
+			ResourceFileAttributes attributes, String name, long lastModified, FileChannel out, boolean compress,
+			Map<ResourceContents.Digest, Entry> stored)
+		throws IOException {
+
+		long offset = out.position();
+		MessageDigest messageDigest = messageDigest();
+		Entry entry = null;
+
+		if (compress) {
+			long size = deflate(attributes, out, messageDigest);
+			long length = out.position() - offset;
+			if (length < size) {
+				entry = new Entry(name, DEFLATED, lastModified, size, offset, length);
+			}
+			else {
+				// did not pay off, stored instead
+				out.truncate(offset);
+				out.position(offset);
+				messageDigest.reset();
+			}
+		}
+
+		if (entry == null) {
+			long size = 0;
+			try (InputStream inputStream = attributes.openStream()) {
+				byte[] bytes = new byte[64 * 1024];
+				int read;
+				while ((read = inputStream.read(bytes)) > -1) {
+					write(out, ByteBuffer.wrap(bytes, 0, read));
+					messageDigest.update(bytes, 0, read);
+					size += read;
+				}
+			}
+			entry = new Entry(name, 0, lastModified, size, offset, size);
+		}
+
+		// the same content under another path is stored once, both entries point at it
+		Entry first = stored.putIfAbsent(
+			new ResourceContents.Digest(entry.size, messageDigest.getAlgorithm(), messageDigest.digest()), entry);
+		if (first == null) {
+			return entry;
+		}
+		out.truncate(offset);
+		out.position(offset);
+		return new Entry(name, first.flags, lastModified, first.size, first.offset, first.length);
+	}
+
+	private static long deflate(ResourceFileAttributes attributes, FileChannel out, MessageDigest messageDigest)
+		throws IOException {
+
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		byte[] bytes = new byte[64 * 1024];
+		byte[] deflated = new byte[64 * 1024];
+		long size = 0;
+
+		try (InputStream inputStream = attributes.openStream()) {
+			int read;
+			while ((read = inputStream.read(bytes)) > -1) {
+				deflater.setInput(bytes, 0, read);
+				messageDigest.update(bytes, 0, read);
+				while (!deflater.needsInput()) {
+					write(out, ByteBuffer.wrap(deflated, 0, deflater.deflate(deflated)));
+				}
+				size += read;
+			}
+			deflater.finish();
+			while (!deflater.finished()) {
+				write(out, ByteBuffer.wrap(deflated, 0, deflater.deflate(deflated)));
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		return size;
+	}
+
+	private static MessageDigest messageDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(ResourceDigests.DEFAULT_ALGORITHMS.get(0));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	private static void writeIndex(FileChannel out, List<Entry> entries) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try (DataOutputStream data = new DataOutputStream(bytes)) {
+			String previous = "";
+			for (Entry entry : entries) {
+				int shared = 0;
+				int max = Math.min(Math.min(previous.length(), entry.name.length()), 0xffff);
+				while (shared < max && previous.charAt(shared) == entry.name.charAt(shared)) {
+					shared++;
+				}
+				data.writeShort(shared);
+				data.writeUTF(entry.name.substring(shared));
+				data.writeByte(entry.flags);
+				data.writeLong(entry.lastModified);
+				data.writeLong(entry.size);
+				data.writeLong(entry.offset);
+				data.writeLong(entry.length);
+				previous = entry.name;
+			}
+		}
+
+		write(out, ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	static ByteBuffer map(Path image) throws IOException {
+		try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Image too large to map " + image);
+			}
+			// the mapping outlives the channel
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	static List<Entry> entries(ByteBuffer image, Path file) throws IOException {
+		ByteBuffer header = image.duplicate();
+		if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Not an image " + file);
+		}
+
+		int count = header.getInt();
+		long indexOffset = header.getLong();
+
+		ByteBuffer index = image.duplicate()
+			.position((int) indexOffset);
+
+		try (DataInputStream in = new DataInputStream(new ResourceBufferInputStream(index))) {
+			List<Entry> entries = new ArrayList<>(count);
+			String previous = "";
+			for (int i = 0; i < count; i++) {
+				int shared = in.readUnsignedShort();
+				previous = previous.substring(0, shared)
+					.concat(in.readUTF());
+				entries.add(new Entry(previous, in.readUnsignedByte(), in.readLong(), in.readLong(), in.readLong(),
+					in.readLong()));
+			}
+			return entries;
+		}
+	}
+
+	static Path path(Object value) {
+		return (value instanceof Path) ? (Path) value : Paths.get(value.toString());
+	}
+
+	// java ResourceImage [-z] <image> <url>...
+	// packs the overlay of the given urls into one image
+	public static void main(String[] args) throws Exception {
+		int first = 0;
+		boolean compress = false;
+		if (args.length > 0 && "-z".equals(args[0])) {
+			compress = true;
+			first++;
+		}
+		if (args.length - first < 2) {
+			System.err.println("usage: ResourceImage [-z] <image> <url>...");
+			System.exit(1);
+		}
+
+		List<URL> urls = new ArrayList<>();
+		for (int i = first + 1; i < args.length; i++) {
+			urls.add(new URL(args[i]));
+		}
+
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, urls);
+		env.put(ResourceFS.OVERLAY, true);
+
+		try (FileSystem fileSystem = FileSystems.newFileSystem(
+			URI.create(ResourceFS.SCHEME + "://image-" + System.nanoTime()), env)) {
+
+			ResourceFS.pack(((ResourceFileSystem) fileSystem).basePath, Paths.get(args[first]), compress);
+		}
+	}
+
+}
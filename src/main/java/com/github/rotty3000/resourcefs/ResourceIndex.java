@@ -0,0 +1,449 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// what mounting a set of urls found, written at build time so a later mount of the same urls
+// replays it instead of probing every source
+class ResourceIndex {
+
+	static final int	MAGIC	= 0x52465358;
+	static final int	VERSION	= 1;
+
+	static final String	RESOURCE_PREFIX	= "META-INF/resourcefs/";
+	static final String	RESOURCE_SUFFIX	= ".index";
+
+	// cheap to recompute at mount time, a source whose stamp changed invalidates the index
+	static class Stamp {
+
+		final long	size;
+		final long	lastModified;
+		final long	count;
+
+		Stamp(long size, long lastModified, long count) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.count = count;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Stamp)) {
+				return false;
+			}
+			Stamp other = (Stamp) obj;
+			return size == other.size && lastModified == other.lastModified && count == other.count;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(size) ^ Long.hashCode(lastModified) ^ Long.hashCode(count);
+		}
+
+	}
+
+	static class Entry {
+
+		final String		name;
+		// null for directories
+		final URL			url;
+		final int			priority;
+		final long			size;
+		final long			crc;
+		final long			lastModified;
+		final long			creation;
+		final List<URL>		shadowed;
+		final Map<String, byte[]>	digests;
+
+		Entry(
+			String name, URL url, int priority, long size, long crc, long lastModified, long creation,
+			List<URL> shadowed, Map<String, byte[]> digests) {
+
+			this.name = name;
+			this.url = url;
+			this.priority = priority;
+			this.size = size;
+			this.crc = crc;
+			this.lastModified = lastModified;
+			this.creation = creation;
+			this.shadowed = shadowed;
+			this.digests = digests;
+		}
+
+	}
+
+	final boolean		overlay;
+	final int			release;
+	final List<String>	sources;
+	final List<Stamp>	stamps;
+	final List<Entry>	entries;
+
+	ResourceIndex(boolean overlay, int release, List<String> sources, List<Stamp> stamps, List<Entry> entries) {
+		this.overlay = overlay;
+		this.release = release;
+		this.sources = sources;
+		this.stamps = stamps;
+		this.entries = entries;
+	}
+
+	// same urls in the same order, mounted the same way, and none of them changed since
+	boolean isCurrent(ResourceFileSystem fileSystem) {
+		if (overlay != fileSystem.overlay || release != fileSystem.release
+			|| sources.size() != fileSystem.urls.size()) {
+			return false;
+		}
+		for (int i = 0; i < sources.size(); i++) {
+			URL url = fileSystem.urls.get(i);
+			if (!sources.get(i)
+				.equals(url.toExternalForm()) || !stamps.get(i)
+					.equals(stamp(url))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static Stamp stamp(URL url) {
+		try {
+			if ("file".equals(url.getProtocol())) {
+				Path path = Paths.get(url.toURI());
+				if (!Files.exists(path)) {
+					return new Stamp(-1, -1, 0);
+				}
+				if (!Files.isDirectory(path)) {
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					return new Stamp(attributes.size(), attributes.lastModifiedTime()
+						.toMillis(), 1);
+				}
+
+				// directories change below their own mtime, only a walk sees that
+				long[] totals = new long[3];
+				try (Stream<Path> walk = Files.walk(path)) {
+					walk.forEach(child -> {
+						try {
+							BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+							totals[0] += attributes.isDirectory() ? 0 : attributes.size();
+							totals[1] = Math.max(totals[1], attributes.lastModifiedTime()
+								.toMillis());
+							totals[2]++;
+						}
+						catch (IOException e) {
+							throw ResourceFS.thro(e);
+						}
+					});
+				}
+				return new Stamp(totals[0], totals[1], totals[2]);
+			}
+
+			URLConnection connection = url.openConnection();
+			return new Stamp(connection.getContentLengthLong(), connection.getLastModified(), 1);
+		}
+		catch (IOException | URISyntaxException | IllegalArgumentException e) {
+			return new Stamp(-1, -1, 0);
+		}
+	}
+
+	// walks the whole mount so nothing is left pending, then records every entry
+	static void write(ResourceFileSystem fileSystem, Path target, boolean digests) throws IOException {
+		if (!fileSystem.buffers.isEmpty() || fileSystem.image != null) {
+			throw new UnsupportedOperationException("Only url sources can be indexed");
+		}
+
+		ResourceFileStore fileStore = fileSystem.fileStore;
+		fileStore.aggregates(fileSystem.basePath);
+
+		List<ResourceAttributeView> views = new ArrayList<>(fileStore.views.values());
+		// parents sort before their children
+		views.sort(Comparator.comparing(view -> String.join(ResourceFS.SEPARATOR, view.resourcePath.segments)));
+
+		Path parent = target.toAbsolutePath()
+			.getParent();
+		Files.createDirectories(parent);
+		Path temp = Files.createTempFile(parent, target.getFileName()
+			.toString(), ".tmp");
+
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeBoolean(fileSystem.overlay);
+				out.writeInt(fileSystem.release);
+
+				out.writeInt(fileSystem.urls.size());
+				for (URL url : fileSystem.urls) {
+					Stamp stamp = stamp(url);
+					out.writeUTF(url.toExternalForm());
+					out.writeLong(stamp.size);
+					out.writeLong(stamp.lastModified);
+					out.writeLong(stamp.count);
+				}
+
+				out.writeInt(views.size());
+				String previousName = "";
+				String previousURL = "";
+				for (ResourceAttributeView view : views) {
+					String name = ResourceFS.SEPARATOR + String.join(ResourceFS.SEPARATOR, view.resourcePath.segments);
+					writeFrontCoded(out, previousName, name);
+					previousName = name;
+
+					if (view.attributes.isDirectory()) {
+						out.writeBoolean(false);
+						continue;
+					}
+
+					ResourceFileAttributes attributes = (ResourceFileAttributes) view.attributes;
+					out.writeBoolean(true);
+					String url = attributes.url.toExternalForm();
+					writeFrontCoded(out, previousURL, url);
+					previousURL = url;
+					out.writeInt(attributes.priority);
+					out.writeLong(attributes.size);
+					out.writeLong(attributes.crc);
+					out.writeLong(attributes.lastModifiedTime.toMillis());
+					out.writeLong(attributes.creationTime.toMillis());
+
+					out.writeInt(attributes.shadowed.size());
+					for (URL shadowed : attributes.shadowed) {
+						out.writeUTF(shadowed.toExternalForm());
+					}
+
+					Map<String, byte[]> map = digests
+						? ResourceDigests.get(attributes, fileSystem.digestAlgorithms).digests
+						: Collections.emptyMap();
+					out.writeInt(map.size());
+					for (Map.Entry<String, byte[]> digest : map.entrySet()) {
+						out.writeUTF(digest.getKey());
+						out.writeShort(digest.getValue().length);
+						out.write(digest.getValue());
+					}
+				}
+			}
+
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	static ResourceIndex read(InputStream inputStream) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not an index");
+			}
+
+			boolean overlay = in.readBoolean();
+			int release = in.readInt();
+
+			int count = in.readInt();
+			List<String> sources = new ArrayList<>(count);
+			List<Stamp> stamps = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				sources.add(in.readUTF());
+				stamps.add(new Stamp(in.readLong(), in.readLong(), in.readLong()));
+			}
+
+			count = in.readInt();
+			List<Entry> entries = new ArrayList<>(count);
+			String name = "";
+			String url = "";
+			for (int i = 0; i < count; i++) {
+				name = readFrontCoded(in, name);
+
+				if (!in.readBoolean()) {
+					entries.add(new Entry(name, null, 0, 0, -1, 0, 0, Collections.emptyList(), Collections.emptyMap()));
+					continue;
+				}
+
+				url = readFrontCoded(in, url);
+				int priority = in.readInt();
+				long size = in.readLong();
+				long crc = in.readLong();
+				long lastModified = in.readLong();
+				long creation = in.readLong();
+
+				int shadowedCount = in.readInt();
+				List<URL> shadowed = new ArrayList<>(shadowedCount);
+				for (int j = 0; j < shadowedCount; j++) {
+					shadowed.add(new URL(in.readUTF()));
+				}
+
+				int digestCount = in.readInt();
+				Map<String, byte[]> digests = (digestCount == 0) ? Collections.emptyMap() : new LinkedHashMap<>();
+				for (int j = 0; j < digestCount; j++) {
+					String algorithm = in.readUTF();
+					byte[] digest = new byte[in.readUnsignedShort()];
+					in.readFully(digest);
+					digests.put(algorithm, digest);
+				}
+
+				entries.add(new Entry(name, new URL(url), priority, size, crc, lastModified, creation, shadowed, digests));
+			}
+
+			return new ResourceIndex(overlay, release, sources, stamps, entries);
+		}
+	}
+
+	// the index given in the environment, or null when there is none or it is out of date
+	static ResourceIndex load(ResourceFileSystem fileSystem, Object value) {
+		if (value == null) {
+			return null;
+		}
+
+		try {
+			URL url = (value instanceof URL) ? (URL) value
+				: (value instanceof Path) ? ((Path) value).toUri()
+					.toURL()
+					: toURL(value.toString());
+
+			ResourceIndex index;
+			try (InputStream inputStream = url.openStream()) {
+				index = read(inputStream);
+			}
+			return index.isCurrent(fileSystem) ? index : null;
+		}
+		catch (IOException e) {
+			// a missing or broken index only costs the probing it would have saved
+			return null;
+		}
+	}
+
+	private static URL toURL(String value) throws MalformedURLException {
+		try {
+			return new URL(value);
+		}
+		catch (MalformedURLException e) {
+			return Paths.get(value)
+				.toUri()
+				.toURL();
+		}
+	}
+
+	// a prebuilt index on the class path for a named file system, see the index profile in the pom
+	static URL resource(String name) {
+		String resource = RESOURCE_PREFIX + name + RESOURCE_SUFFIX;
+		ClassLoader classLoader = Thread.currentThread()
+			.getContextClassLoader();
+		URL url = (classLoader != null) ? classLoader.getResource(resource) : null;
+		return (url != null) ? url : ResourceIndex.class.getClassLoader()
+			.getResource(resource);
+	}
+
+	private static void writeFrontCoded(DataOutputStream out, String previous, String value) throws IOException {
+		int shared = 0;
+		int max = Math.min(Math.min(previous.length(), value.length()), 0xffff);
+		while (shared < max && previous.charAt(shared) == value.charAt(shared)) {
+			shared++;
+		}
+		out.writeShort(shared);
+		out.writeUTF(value.substring(shared));
+	}
+
+	private static String readFrontCoded(DataInputStream in, String previous) throws IOException {
+		int shared = in.readUnsignedShort();
+		return previous.substring(0, shared)
+			.concat(in.readUTF());
+	}
+
+	// java ResourceIndex [--overlay] [--digests] [--multi-release=N] <index> <url>[,<url>...]...
+	public static void main(String[] args) throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		boolean digests = false;
+		List<String> rest = new ArrayList<>();
+
+		// maven passes unset options as one blank argument, several as one spaced argument
+		for (String arg : args) {
+			if (!arg.trim()
+				.startsWith("--")) {
+				if (!arg.trim()
+					.isEmpty()) {
+					rest.add(arg);
+				}
+				continue;
+			}
+
+			for (String option : arg.trim()
+				.split("\\s+")) {
+				if ("--overlay".equals(option)) {
+					env.put(ResourceFS.OVERLAY, true);
+				}
+				else if ("--digests".equals(option)) {
+					digests = true;
+				}
+				else if (option.startsWith("--multi-release=")) {
+					env.put(ResourceFS.MULTI_RELEASE, option.substring("--multi-release=".length()));
+				}
+				else {
+					throw new IllegalArgumentException("Unknown option " + option);
+				}
+			}
+		}
+
+		if (rest.size() < 2) {
+			System.err.println("usage: ResourceIndex [--overlay] [--digests] [--multi-release=N] <index> <url>...");
+			System.exit(1);
+		}
+
+		List<URL> urls = new ArrayList<>();
+		for (String arg : rest.subList(1, rest.size())) {
+			for (String url : arg.split("\\s*,\\s*")) {
+				if (!url.isEmpty()) {
+					urls.add(toURL(url));
+				}
+			}
+		}
+		env.put(ResourceFS.URLS, urls);
+
+		try (FileSystem fileSystem = FileSystems.newFileSystem(
+			URI.create(ResourceFS.SCHEME + "://index-" + System.nanoTime()), env)) {
+
+			write((ResourceFileSystem) fileSystem, Paths.get(rest.get(0)), digests);
+		}
+
+		System.out.println("Indexed " + urls.stream()
+			.map(URL::toExternalForm)
+			.collect(Collectors.joining(", ")) + " into " + rest.get(0));
+	}
+
+}
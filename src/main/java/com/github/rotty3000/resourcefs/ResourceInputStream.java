@@ -0,0 +1,270 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+public class ResourceInputStream extends InputStream {
+
+	private final FileChannel	channel;
+	private final InputStream	stream;
+	private final Closeable		permit;
+	private final long			size;
+	private final byte[]		buffer;
+	private int					bufferPosition;
+	private int					bufferCount;
+	private long				sourcePosition;
+	private volatile boolean	closed;
+
+	// channel is set for seekable local sources, stream for everything else; the permit, if any, is
+	// given back on close
+	ResourceInputStream(FileChannel channel, InputStream stream, long size, int readAhead, Closeable permit) {
+		this.channel = channel;
+		this.stream = stream;
+		this.permit = permit;
+		this.size = size;
+		this.buffer = (readAhead > 0) ? new byte[readAhead] : null;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public int read() throws IOException {
+		ensureOpen();
+		if (bufferPosition < bufferCount) {
+			return buffer[bufferPosition++] & 0xff;
+		}
+		if (buffer != null) {
+			if (fill() <= 0) {
+				return -1;
+			}
+			return buffer[bufferPosition++] & 0xff;
+		}
+		byte[] one = new byte[1];
+		return (readSource(one, 0, 1) <= 0) ? -1 : (one[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (len == 0) {
+			return 0;
+		}
+
+		int buffered = bufferCount - bufferPosition;
+		if (buffered > 0) {
+			int n = Math.min(buffered, len);
+			System.arraycopy(buffer, bufferPosition, b, off, n);
+			bufferPosition += n;
+			return n;
+		}
+
+		// large reads bypass the read-ahead buffer
+		if (buffer == null || len >= buffer.length) {
+			return readSource(b, off, len);
+		}
+
+		if (fill() <= 0) {
+			return -1;
+		}
+		int n = Math.min(bufferCount, len);
+		System.arraycopy(buffer, 0, b, off, n);
+		bufferPosition = n;
+		return n;
+	}
+
+	@Override
+	public byte[] readAllBytes() throws IOException {
+		return readNBytes(Integer.MAX_VALUE);
+	}
+
+	@Override
+	public byte[] readNBytes(int len) throws IOException {
+		ensureOpen();
+		if (len < 0) {
+			throw new IllegalArgumentException("len < 0");
+		}
+
+		long remaining = remaining();
+		if (remaining < 0 || remaining > Integer.MAX_VALUE - 8) {
+			return super.readNBytes(len);
+		}
+
+		byte[] bytes = new byte[(int) Math.min(len, remaining)];
+		int n = readNBytes(bytes, 0, bytes.length);
+		if (n < bytes.length) {
+			return Arrays.copyOf(bytes, n);
+		}
+		if (n == len) {
+			return bytes;
+		}
+
+		// the indexed size was stale, pick up whatever follows
+		byte[] more = super.readNBytes(len - n);
+		if (more.length == 0) {
+			return bytes;
+		}
+		byte[] all = Arrays.copyOf(bytes, n + more.length);
+		System.arraycopy(more, 0, all, n, more.length);
+		return all;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		ensureOpen();
+		if (n <= 0) {
+			return 0;
+		}
+
+		long skipped = Math.min(n, bufferCount - bufferPosition);
+		bufferPosition += skipped;
+		n -= skipped;
+
+		if (n > 0) {
+			if (channel != null) {
+				long target = Math.min(sourcePosition + n, channel.size());
+				skipped += target - sourcePosition;
+				sourcePosition = target;
+				channel.position(target);
+			}
+			else {
+				long s = stream.skip(n);
+				sourcePosition += s;
+				skipped += s;
+			}
+		}
+
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		ensureOpen();
+		int buffered = bufferCount - bufferPosition;
+		long remaining = (size < 0) ? ((stream != null) ? stream.available() : 0) : (size - sourcePosition);
+		return (int) Math.min(Integer.MAX_VALUE, buffered + Math.max(0, remaining));
+	}
+
+	// zero copy only where the stream gives its channel away; sockets and other channels are served
+	// without a copy through transferTo(WritableByteChannel) with the channel itself
+	@Override
+	public long transferTo(OutputStream out) throws IOException {
+		ensureOpen();
+		if (channel != null && out instanceof FileOutputStream) {
+			return transferTo(((FileOutputStream) out).getChannel());
+		}
+		if (channel != null && out instanceof WritableByteChannel) {
+			return transferTo((WritableByteChannel) out);
+		}
+		return super.transferTo(out);
+	}
+
+	public long transferTo(WritableByteChannel target) throws IOException {
+		ensureOpen();
+		if (channel == null) {
+			return transferTo(Channels.newOutputStream(target));
+		}
+
+		long transferred = 0;
+		int buffered = bufferCount - bufferPosition;
+		if (buffered > 0) {
+			ByteBuffer pending = ByteBuffer.wrap(buffer, bufferPosition, buffered);
+			while (pending.hasRemaining()) {
+				target.write(pending);
+			}
+			bufferPosition = bufferCount;
+			transferred += buffered;
+		}
+
+		// channel to channel, sendfile/copy_file_range where the platform has them
+		long end = channel.size();
+		while (sourcePosition < end) {
+			long n = channel.transferTo(sourcePosition, end - sourcePosition, target);
+			if (n <= 0) {
+				break;
+			}
+			sourcePosition += n;
+			transferred += n;
+		}
+		channel.position(sourcePosition);
+		return transferred;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			else {
+				stream.close();
+			}
+		}
+		finally {
+			if (permit != null) {
+				permit.close();
+			}
+		}
+	}
+
+	private int fill() throws IOException {
+		bufferPosition = 0;
+		bufferCount = 0;
+		int n = readSource(buffer, 0, buffer.length);
+		if (n > 0) {
+			bufferCount = n;
+		}
+		return n;
+	}
+
+	private int readSource(byte[] b, int off, int len) throws IOException {
+		int n = (channel != null) ? channel.read(ByteBuffer.wrap(b, off, len)) : stream.read(b, off, len);
+		if (n > 0) {
+			sourcePosition += n;
+		}
+		return n;
+	}
+
+	private long remaining() {
+		if (size < 0) {
+			return -1;
+		}
+		return (bufferCount - bufferPosition) + Math.max(0, size - sourcePosition);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// equivalent sources for a url prefix, reads go to the best mirror and are hedged on the
+// next one when the first byte is late
+class ResourceMirrors {
+
+	static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "ResourceFS-mirror");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// bounds for the adaptive hedge delay
+	static final long	MIN_DELAY_NANOS	= TimeUnit.MILLISECONDS.toNanos(10);
+	static final long	MAX_DELAY_NANOS	= TimeUnit.SECONDS.toNanos(2);
+	static final int	DEFAULT_TIMEOUT_MILLIS	= 30_000;
+
+	// primary prefix -> all prefixes in configured order, primary first
+	final Map<String, List<Mirror>>	groups	= new LinkedHashMap<>();
+	// fixed hedge delay, or adaptive when negative
+	final long						delayNanos;
+	// for the first byte from any mirror, the hedges included
+	final long						timeoutNanos;
+
+	ResourceMirrors(Map<?, ?> config, long delayMillis, long timeoutMillis) {
+		this.delayNanos = (delayMillis < 0) ? -1 : TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+		config.forEach((primary, mirrors) -> {
+			List<Mirror> group = new ArrayList<>();
+			group.add(new Mirror(primary.toString()));
+			for (Object mirror : (Collection<?>) mirrors) {
+				group.add(new Mirror(mirror.toString()));
+			}
+			groups.put(primary.toString(), group);
+		});
+	}
+
+	// every attempt waits for a permit of the file system, see ResourceScheduler; a url without
+	// mirrors is opened by direct
+	InputStream open(URL url, ResourceFileSystem fileSystem, ResourceFileSystem.Source direct) throws IOException {
+		String spec = url.toExternalForm();
+
+		for (Map.Entry<String, List<Mirror>> entry : groups.entrySet()) {
+			int index = match(spec, entry.getKey());
+			if (index > -1) {
+				return open(spec, index, entry.getKey(), entry.getValue(), fileSystem);
+			}
+		}
+
+		return fileSystem.open(url.getProtocol(), direct);
+	}
+
+	// where the prefix starts the url, or the archive url of a jar url, and ends on a name
+	// boundary; -1 when it does not
+	static int match(String spec, String prefix) {
+		int index = spec.startsWith("jar:") ? 4 : 0;
+		if (!spec.startsWith(prefix, index)) {
+			return -1;
+		}
+
+		int end = index + prefix.length();
+		if (prefix.endsWith("/") || end == spec.length() || "/!?#".indexOf(spec.charAt(end)) > -1) {
+			return index;
+		}
+		return -1;
+	}
+
+	private InputStream open(String spec, int index, String primary, List<Mirror> group, ResourceFileSystem fileSystem)
+		throws IOException {
+		// fastest expected first
+		List<Mirror> candidates = new ArrayList<>(group);
+		candidates.sort(Comparator.comparingLong(Mirror::score));
+
+		List<Attempt> attempts = new ArrayList<>();
+		IOException failure = null;
+		long deadline = System.nanoTime() + timeoutNanos;
+
+		try {
+			for (int i = 0; i < candidates.size(); i++) {
+				Mirror mirror = candidates.get(i);
+				URL url = new URL(spec.substring(0, index) + mirror.prefix + spec.substring(index + primary.length()));
+				attempts.add(new Attempt(mirror, url).start(fileSystem));
+
+				// the last one started waits out what is left of the timeout
+				boolean last = (i == candidates.size() - 1);
+				long remaining = deadline - System.nanoTime();
+				long delay = last ? remaining : Math.min(remaining, delay(mirror));
+
+				Attempt winner = await(attempts, delay);
+				if (winner != null) {
+					return winner.inputStream;
+				}
+				if (deadline - System.nanoTime() <= 0) {
+					failure = new IOException("No mirror answered for " + spec + " within "
+						+ TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+					break;
+				}
+			}
+		}
+		catch (MalformedURLException e) {
+			failure = e;
+		}
+		finally {
+			for (Attempt attempt : attempts) {
+				attempt.cancelUnlessWon();
+			}
+		}
+
+		for (Attempt attempt : attempts) {
+			Throwable cause = attempt.failure();
+			if (cause instanceof IOException && failure == null) {
+				failure = (IOException) cause;
+			}
+		}
+		throw (failure != null) ? failure : new IOException("No mirror answered for " + spec);
+	}
+
+	// first successful attempt, or null once the delay passed or all that were started failed
+	private Attempt await(List<Attempt> attempts, long delayNanos) {
+		long deadline = System.nanoTime() + delayNanos;
+
+		while (true) {
+			List<CompletableFuture<?>> running = new ArrayList<>();
+			for (Attempt attempt : attempts) {
+				if (attempt.succeeded()) {
+					attempt.won = true;
+					return attempt;
+				}
+				if (!attempt.future.isDone()) {
+					running.add(attempt.future);
+				}
+			}
+			if (running.isEmpty()) {
+				return null;
+			}
+
+			CompletableFuture<Object> any = CompletableFuture.anyOf(running.toArray(new CompletableFuture<?>[0]));
+			try {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return null;
+				}
+				any.get(remaining, TimeUnit.NANOSECONDS);
+			}
+			catch (TimeoutException e) {
+				return null;
+			}
+			catch (ExecutionException e) {
+				// a failed attempt, look again
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread()
+					.interrupt();
+				return null;
+			}
+		}
+	}
+
+	long delay(Mirror mirror) {
+		if (delayNanos >= 0) {
+			return delayNanos;
+		}
+		return mirror.hedgeDelay();
+	}
+
+	Map<String, Map<String, Object>> stats() {
+		Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+		groups.values()
+			.forEach(group -> group.forEach(mirror -> stats.put(mirror.prefix, mirror.stats(this))));
+		return stats;
+	}
+
+	static ResourceMirrors create(Map<String, ?> env) {
+		Object value = env.get(ResourceFS.MIRRORS);
+		if (value == null) {
+			return null;
+		}
+
+		return new ResourceMirrors((Map<?, ?>) value, ResourceFileSystem.option(env, ResourceFS.HEDGE_DELAY, -1),
+			ResourceFileSystem.option(env, ResourceFS.MIRROR_TIMEOUT, DEFAULT_TIMEOUT_MILLIS));
+	}
+
+	static class Mirror {
+
+		final String		prefix;
+		// smoothed time to first byte and its mean deviation, as for tcp retransmission timers
+		volatile long		latencyNanos	= -1;
+		volatile long		deviationNanos;
+		final AtomicLong	requests		= new AtomicLong();
+		final AtomicLong	wins			= new AtomicLong();
+		final AtomicLong	cancelled		= new AtomicLong();
+		final AtomicLong	failures		= new AtomicLong();
+
+		Mirror(String prefix) {
+			this.prefix = prefix;
+		}
+
+		synchronized void sample(long nanos) {
+			if (latencyNanos < 0) {
+				latencyNanos = nanos;
+				deviationNanos = nanos / 2;
+				return;
+			}
+			long error = nanos - latencyNanos;
+			latencyNanos += error / 8;
+			deviationNanos += (Math.abs(error) - deviationNanos) / 4;
+		}
+
+		long hedgeDelay() {
+			if (latencyNanos < 0) {
+				return MAX_DELAY_NANOS / 4;
+			}
+			return Math.max(MIN_DELAY_NANOS, Math.min(MAX_DELAY_NANOS, latencyNanos + 4 * deviationNanos));
+		}
+
+		// mirrors without samples rank after measured ones in their configured order,
+		// recent failures push a mirror further back
+		long score() {
+			long latency = (latencyNanos < 0) ? MAX_DELAY_NANOS : latencyNanos;
+			return latency + failures.get() * MAX_DELAY_NANOS;
+		}
+
+		Map<String, Object> stats(ResourceMirrors mirrors) {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("latencyNanos", latencyNanos);
+			stats.put("deviationNanos", deviationNanos);
+			stats.put("hedgeDelayNanos", mirrors.delay(this));
+			stats.put("requests", requests.get());
+			stats.put("wins", wins.get());
+			stats.put("cancelled", cancelled.get());
+			stats.put("failures", failures.get());
+			return stats;
+		}
+
+	}
+
+	static class Attempt {
+
+		final Mirror						mirror;
+		final URL							url;
+		final CompletableFuture<InputStream>	future	= new CompletableFuture<>();
+		volatile URLConnection				connection;
+		volatile InputStream				inputStream;
+		volatile boolean					won;
+
+		Attempt(Mirror mirror, URL url) {
+			this.mirror = mirror;
+			this.url = url;
+		}
+
+		Attempt start(ResourceFileSystem fileSystem) {
+			mirror.requests.incrementAndGet();
+			long start = System.nanoTime();
+
+			EXECUTOR.execute(() -> {
+				try {
+					// closing the stream, as the loser's is, gives the permit back
+					PushbackInputStream pushback = new PushbackInputStream(fileSystem.open(url.getProtocol(), this::open),
+						1);
+					// the first byte is what is raced
+					int first = pushback.read();
+					if (first >= 0) {
+						pushback.unread(first);
+					}
+					mirror.sample(System.nanoTime() - start);
+					inputStream = pushback;
+					if (!future.complete(pushback)) {
+						pushback.close();
+					}
+				}
+				catch (Throwable t) {
+					if (!future.isCancelled()) {
+						mirror.failures.incrementAndGet();
+					}
+					future.completeExceptionally(t);
+				}
+			});
+
+			return this;
+		}
+
+		// an entry of a remote archive is read through a connection of our own to the archive, the one
+		// the jar handler keeps to itself cannot be disconnected when the attempt loses
+		private InputStream open() throws IOException {
+			URLConnection urlConnection = url.openConnection();
+			if (!(urlConnection instanceof JarURLConnection)) {
+				connection = urlConnection;
+				return urlConnection.getInputStream();
+			}
+
+			JarURLConnection jarConnection = (JarURLConnection) urlConnection;
+			URLConnection archive = jarConnection.getJarFileURL()
+				.openConnection();
+			connection = archive;
+			String name = jarConnection.getEntryName();
+			InputStream inputStream = archive.getInputStream();
+			if (name == null) {
+				return inputStream;
+			}
+
+			ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+			try {
+				ZipEntry entry;
+				while ((entry = zipInputStream.getNextEntry()) != null) {
+					if (name.equals(entry.getName())) {
+						return zipInputStream;
+					}
+				}
+			}
+			catch (IOException | RuntimeException e) {
+				zipInputStream.close();
+				throw e;
+			}
+			zipInputStream.close();
+			throw new FileNotFoundException("JAR entry " + name + " not found in " + jarConnection.getJarFileURL());
+		}
+
+		boolean succeeded() {
+			return future.isDone() && !future.isCompletedExceptionally() && !future.isCancelled();
+		}
+
+		Throwable failure() {
+			try {
+				future.getNow(null);
+				return null;
+			}
+			catch (Exception e) {
+				return e.getCause();
+			}
+		}
+
+		void cancelUnlessWon() {
+			if (won) {
+				mirror.wins.incrementAndGet();
+				// a success clears earlier failures
+				mirror.failures.set(0);
+				return;
+			}
+
+			if (future.cancel(false)) {
+				mirror.cancelled.incrementAndGet();
+				URLConnection urlConnection = connection;
+				if (urlConnection instanceof HttpURLConnection) {
+					((HttpURLConnection) urlConnection).disconnect();
+				}
+			}
+			else if (succeeded()) {
+				mirror.cancelled.incrementAndGet();
+				try {
+					future.getNow(null)
+						.close();
+				}
+				catch (IOException e) {
+					// the loser's stream
+				}
+			}
+		}
+
+	}
+
+}
@@ -22,49 +22,81 @@ import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchEvent.Modifier;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 
 class ResourcePath implements Path {
 
+	private static final String[]	EMPTY	= new String[0];
+
 	final ResourceFileSystem	fileSystem;
-	final URI				uri;
-	final byte[]			path;
 	final String[]			segments;
-	volatile String			string;
+	// names, e.g. from getFileName or relativize, resolve against a path or else against the root
+	final boolean			absolute;
+	// derived from the segments on first use, paths built by resolve, getParent and the
+	// like are only ever compared or hashed and never need them
+	private volatile URI		uri;
+	private volatile byte[]		path;
+	private int					hash;
+
+	// set on indexed instances, which are what directory streams hand out, so
+	// attribute reads during a walk need no further index lookup
+	volatile ResourceAttributeView	view;
 
 	ResourcePath(ResourceFileSystem fileSystem, String path) {
+		this(fileSystem, split(path), true);
+	}
+
+	// takes ownership of the array
+	ResourcePath(ResourceFileSystem fileSystem, String[] segments) {
+		this(fileSystem, segments, true);
+	}
+
+	ResourcePath(ResourceFileSystem fileSystem, String[] segments, boolean absolute) {
 		this.fileSystem = fileSystem;
+		this.segments = segments;
+		this.absolute = absolute;
+	}
+
+	static String[] split(String path) {
 		path = Objects.requireNonNull(path, "path cannot be null");
-		String[] segs;
-		if (ResourceFS.SEPARATOR.equals(path)) {
-			path = "";
-			segs = new String[0];
+		if (path.length() > 1 && path.endsWith(ResourceFS.SEPARATOR)) {
+			path = path.substring(0, path.length() - 1);
+		}
+		if (ResourceFS.SEPARATOR.equals(path) || path.isEmpty()) {
+			return EMPTY;
 		} else if (path.startsWith(ResourceFS.SEPARATOR)) {
-			path = path.substring(1);
-			segs = path.split(ResourceFS.SEPARATOR);
+			return path.substring(1).split(ResourceFS.SEPARATOR);
 		} else {
-			segs = path.split(ResourceFS.SEPARATOR);
+			return path.split(ResourceFS.SEPARATOR);
+		}
+	}
+
+	byte[] bytes() {
+		byte[] bytes = path;
+		if (bytes == null) {
+			path = bytes = String.join(ResourceFS.SEPARATOR, segments)
+				.getBytes(StandardCharsets.UTF_8);
 		}
-		this.segments = segs;
-		this.path = path.getBytes(StandardCharsets.UTF_8);
-		this.uri = ResourceFS.build(fileSystem.authority, ResourceFS.join(path));
+		return bytes;
 	}
 
 	@Override
 	public int compareTo(Path other) {
-		int len1 = path.length;
-		int len2 = ((ResourcePath) other).path.length;
+		byte v1[] = bytes();
+		byte v2[] = ((ResourcePath) other).bytes();
+		int len1 = v1.length;
+		int len2 = v2.length;
 
 		int n = Math.min(len1, len2);
-		byte v1[] = path;
-		byte v2[] = ((ResourcePath) other).path;
 
 		int k = 0;
 		while (k < n) {
@@ -80,10 +112,15 @@ class ResourcePath implements Path {
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((uri == null) ? 0 : uri.hashCode());
-		return result;
+		int h = hash;
+		if (h == 0) {
+			h = fileSystem.authority.hashCode() + (absolute ? 0 : 1);
+			for (String segment : segments) {
+				h = 31 * h + segment.hashCode();
+			}
+			hash = h;
+		}
+		return h;
 	}
 
 	@Override
@@ -95,27 +132,33 @@ class ResourcePath implements Path {
 		if (getClass() != obj.getClass())
 			return false;
 		ResourcePath other = (ResourcePath) obj;
-		if (uri == null) {
-			if (other.uri != null)
-				return false;
-		} else if (!uri.equals(other.uri))
-			return false;
-		return true;
+		return (hashCode() == other.hashCode()) && absolute == other.absolute
+			&& fileSystem.authority.equals(other.fileSystem.authority) && Arrays.equals(segments, other.segments);
 	}
 
 	@Override
 	public boolean endsWith(Path other) {
-		int index = segments.length - 1;
-		while ((index > -1) && other.getFileName()
-			.toString()
-			.equals(segments[index])) {
-			if (other.getParent() == null) {
-				return true;
+		if (!(other instanceof ResourcePath)) {
+			return false;
+		}
+
+		ResourcePath resourcePath = (ResourcePath) other;
+		if (resourcePath.absolute) {
+			return equals(resourcePath);
+		}
+
+		String[] suffix = resourcePath.segments;
+		int offset = segments.length - suffix.length;
+		if (offset < 0) {
+			return false;
+		}
+
+		for (int i = 0; i < suffix.length; i++) {
+			if (!segments[offset + i].equals(suffix[i])) {
+				return false;
 			}
-			other = other.getParent();
-			index--;
 		}
-		return false;
+		return true;
 	}
 
 	@Override
@@ -125,7 +168,12 @@ class ResourcePath implements Path {
 
 	@Override
 	public ResourcePath getFileName() {
-		return fileSystem.getPath(segments[segments.length - 1]);
+		if (segments.length == 0) {
+			return null;
+		}
+		return new ResourcePath(fileSystem, new String[] {
+			segments[segments.length - 1]
+		}, false);
 	}
 
 	@Override
@@ -135,7 +183,9 @@ class ResourcePath implements Path {
 
 	@Override
 	public Path getName(int index) {
-		return fileSystem.getPath(segments[index]);
+		return new ResourcePath(fileSystem, new String[] {
+			segments[index]
+		}, false);
 	}
 
 	@Override
@@ -145,24 +195,21 @@ class ResourcePath implements Path {
 
 	@Override
 	public ResourcePath getParent() {
-		if (segments.length == 0) {
+		if (segments.length == 0 || (!absolute && segments.length == 1)) {
 			return null;
 		}
 
-		URI parent = uri.getPath()
-			.endsWith("/") ? uri.resolve("..") : uri.resolve(".");
-
-		return fileSystem.getPath(parent.getPath());
+		return new ResourcePath(fileSystem, Arrays.copyOf(segments, segments.length - 1), absolute);
 	}
 
 	@Override
 	public Path getRoot() {
-		return fileSystem.getPath(segments[0]);
+		return absolute ? fileSystem.basePath : null;
 	}
 
 	@Override
 	public boolean isAbsolute() {
-		return true;
+		return absolute;
 	}
 
 	@Override
@@ -193,9 +240,43 @@ class ResourcePath implements Path {
 		};
 	}
 
+	// one pass, '.' is dropped and '..' pops its parent; at the root an absolute path has nothing to
+	// pop, a relative one keeps the '..' as it climbs above where it starts
 	@Override
-	public Path normalize() {
-		return this;
+	public ResourcePath normalize() {
+		String[] normalized = null;
+		int count = 0;
+
+		for (int i = 0; i < segments.length; i++) {
+			String segment = segments[i];
+			boolean dot = ".".equals(segment) || segment.isEmpty();
+			boolean dotDot = "..".equals(segment);
+
+			if (normalized == null) {
+				if (!dot && !dotDot) {
+					continue;
+				}
+				normalized = Arrays.copyOf(segments, segments.length);
+				count = i;
+			}
+
+			if (dotDot) {
+				if (count > 0 && !"..".equals(normalized[count - 1])) {
+					count--;
+				}
+				else if (!absolute) {
+					normalized[count++] = segment;
+				}
+			}
+			else if (!dot) {
+				normalized[count++] = segment;
+			}
+		}
+
+		if (normalized == null) {
+			return this;
+		}
+		return new ResourcePath(fileSystem, Arrays.copyOf(normalized, count), absolute);
 	}
 
 	@Override
@@ -209,15 +290,45 @@ class ResourcePath implements Path {
 	}
 
 	@Override
-	public Path relativize(Path other) {
-		// TODO
-		return null;
+	public ResourcePath relativize(Path other) {
+		ResourcePath resourcePath = checkPath(other);
+		if (absolute != resourcePath.absolute) {
+			throw new IllegalArgumentException("'other' is different type of Path");
+		}
+		String[] target = resourcePath.segments;
+
+		int common = 0;
+		int max = Math.min(segments.length, target.length);
+		while (common < max && segments[common].equals(target[common])) {
+			common++;
+		}
+
+		int up = segments.length - common;
+		String[] relative = new String[up + target.length - common];
+		Arrays.fill(relative, 0, up, "..");
+		System.arraycopy(target, common, relative, up, target.length - common);
+		return new ResourcePath(fileSystem, relative, false);
 	}
 
+	// an absolute path replaces this one, the names of a relative one are appended
 	@Override
-	public Path resolve(Path other) {
-		// TODO
-		return null;
+	public ResourcePath resolve(Path other) {
+		ResourcePath resourcePath = checkPath(other);
+		if (resourcePath.absolute) {
+			return resourcePath;
+		}
+
+		String[] more = resourcePath.segments;
+		if (more.length == 0) {
+			return this;
+		}
+		if (segments.length == 0 && absolute == resourcePath.absolute) {
+			return resourcePath;
+		}
+
+		String[] resolved = Arrays.copyOf(segments, segments.length + more.length);
+		System.arraycopy(more, 0, resolved, segments.length, more.length);
+		return new ResourcePath(fileSystem, resolved, absolute);
 	}
 
 	@Override
@@ -240,17 +351,23 @@ class ResourcePath implements Path {
 
 	@Override
 	public boolean startsWith(Path other) {
-		if (other.getNameCount() > segments.length) {
+		if (!(other instanceof ResourcePath)) {
 			return false;
 		}
 
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < other.getNameCount(); i++) {
-			sb.append(ResourceFS.SEPARATOR);
-			sb.append(segments[i]);
+		ResourcePath resourcePath = (ResourcePath) other;
+		String[] prefix = resourcePath.segments;
+		if (prefix.length > segments.length || absolute != resourcePath.absolute
+			|| !fileSystem.authority.equals(resourcePath.fileSystem.authority)) {
+			return false;
 		}
-		return fileSystem.getPath(sb.toString())
-			.equals(other);
+
+		for (int i = 0; i < prefix.length; i++) {
+			if (!segments[i].equals(prefix[i])) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
@@ -260,20 +377,16 @@ class ResourcePath implements Path {
 
 	@Override
 	public Path subpath(int beginIndex, int endIndex) {
-		StringBuilder sb = new StringBuilder();
-		for (int i = beginIndex; i < endIndex; i++) {
-			if (i > beginIndex) {
-				sb.append(ResourceFS.SEPARATOR);
-			}
-			sb.append(segments[i]);
+		if (beginIndex < 0 || endIndex > segments.length || beginIndex >= endIndex) {
+			throw new IllegalArgumentException();
 		}
-		return fileSystem.getPath(sb.toString());
+		return new ResourcePath(fileSystem, Arrays.copyOfRange(segments, beginIndex, endIndex), false);
 	}
 
+	// the root is the only directory to resolve against
 	@Override
-	public Path toAbsolutePath() {
-		// TODO
-		return this;
+	public ResourcePath toAbsolutePath() {
+		return absolute ? this : new ResourcePath(fileSystem, segments);
 	}
 
 	@Override
@@ -295,20 +408,37 @@ class ResourcePath implements Path {
 		};
 	}
 
+	// there are no links, the real path is the indexed instance of the normalized path
 	@Override
 	public Path toRealPath(LinkOption... options) throws IOException {
-		// TODO
-		return null;
+		return fileSystem.provider.lookup(toAbsolutePath().normalize()).resourcePath;
 	}
 
 	@Override
 	public String toString() {
-		return uri.toString();
+		if (!absolute) {
+			return String.join(ResourceFS.SEPARATOR, segments);
+		}
+		return toUri().toString();
 	}
 
 	@Override
 	public URI toUri() {
-		return uri;
+		if (!absolute) {
+			return toAbsolutePath().toUri();
+		}
+		URI result = uri;
+		if (result == null) {
+			uri = result = ResourceFS.build(fileSystem.authority, ResourceFS.join(String.join(ResourceFS.SEPARATOR, segments)));
+		}
+		return result;
+	}
+
+	private ResourcePath checkPath(Path other) {
+		if (!(Objects.requireNonNull(other) instanceof ResourcePath)) {
+			throw new ProviderMismatchException();
+		}
+		return (ResourcePath) other;
 	}
 
 }
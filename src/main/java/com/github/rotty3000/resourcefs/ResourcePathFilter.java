@@ -0,0 +1,130 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class ResourcePathFilter {
+
+	static final int	BITS_PER_ENTRY	= 10;
+	static final int	PROBES			= 7;
+
+	final int						capacity;
+	private final AtomicLongArray	bits;
+	private final int				mask;
+
+	ResourcePathFilter(int expectedEntries) {
+		this.capacity = Math.max(expectedEntries, 1);
+		long wanted = Math.max(64L, (long) Math.max(expectedEntries, 1) * BITS_PER_ENTRY);
+		int size = Integer.highestOneBit((int) Math.min(wanted, 1L << 30));
+		if (size < wanted && size < (1 << 30)) {
+			size <<= 1;
+		}
+		this.bits = new AtomicLongArray(size >>> 6);
+		this.mask = size - 1;
+	}
+
+	void add(ResourcePath resourcePath) {
+		add(hash(resourcePath.segments));
+	}
+
+	boolean mightContain(ResourcePath resourcePath) {
+		return mightContain(hash(resourcePath.segments));
+	}
+
+	boolean mightContain(String path) {
+		return mightContain(hash(path));
+	}
+
+	private void add(long hash) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < PROBES; i++) {
+			int bit = (h1 + i * h2) & mask;
+			int word = bit >>> 6;
+			long flag = 1L << bit;
+			long current;
+			while (((current = bits.get(word)) & flag) == 0 && !bits.compareAndSet(word, current, current | flag)) {
+				// retry
+			}
+		}
+	}
+
+	private boolean mightContain(long hash) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < PROBES; i++) {
+			int bit = (h1 + i * h2) & mask;
+			if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// keys are the segments joined by the separator without a leading separator
+	// so that both a ResourcePath and a plain String hash without allocation
+
+	static long hash(String[] segments) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < segments.length; i++) {
+			if (i > 0) {
+				h = mix(h, ResourceFS.SEPARATOR.charAt(0));
+			}
+			String segment = segments[i];
+			for (int j = 0; j < segment.length(); j++) {
+				h = mix(h, segment.charAt(j));
+			}
+		}
+		return finish(h);
+	}
+
+	static long hash(String path) {
+		char separator = ResourceFS.SEPARATOR.charAt(0);
+		int start = 0;
+		int end = path.length();
+		while (start < end && path.charAt(start) == separator) {
+			start++;
+		}
+		while (end > start && path.charAt(end - 1) == separator) {
+			end--;
+		}
+		long h = FNV_OFFSET;
+		for (int i = start; i < end; i++) {
+			h = mix(h, path.charAt(i));
+		}
+		return finish(h);
+	}
+
+	private static final long	FNV_OFFSET	= 0xcbf29ce484222325L;
+	private static final long	FNV_PRIME	= 0x100000001b3L;
+
+	private static long mix(long h, char c) {
+		return (h ^ c) * FNV_PRIME;
+	}
+
+	private static long finish(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		// the second hash must be odd so probes cover the whole table
+		return h | (1L << 32);
+	}
+
+}
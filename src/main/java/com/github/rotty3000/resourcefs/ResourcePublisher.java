@@ -0,0 +1,299 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// cold publishers, every subscriber gets its own source which is opened on first demand
+class ResourcePublisher<T> implements Flow.Publisher<T> {
+
+	// blocking source reads run here unless the caller hands in an executor
+	static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "ResourceFS-publisher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	interface Source<T> {
+
+		// null at the end
+		T next() throws IOException;
+
+		void close() throws IOException;
+
+	}
+
+	interface SourceFactory<T> {
+
+		Source<T> open() throws IOException;
+
+	}
+
+	static Flow.Publisher<ByteBuffer> bytes(ResourcePath path, int chunkSize, Executor executor) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize <= 0");
+		}
+
+		return new ResourcePublisher<>(() -> {
+			ResourceAttributeView view = path.fileSystem.provider.lookup(path);
+			if (!view.attributes.isRegularFile()) {
+				throw new IOException(path + " is not a regular file");
+			}
+
+			ResourceFileAttributes attributes = (ResourceFileAttributes) view.attributes;
+			ByteBuffer slice = attributes.slice();
+
+			// in-memory content is handed out as read-only windows, no copying
+			if (slice != null) {
+				return new Source<ByteBuffer>() {
+
+					@Override
+					public ByteBuffer next() {
+						if (!slice.hasRemaining()) {
+							return null;
+						}
+						ByteBuffer chunk = slice.slice();
+						chunk.limit(Math.min(chunkSize, chunk.remaining()));
+						slice.position(slice.position() + chunk.remaining());
+						return chunk;
+					}
+
+					@Override
+					public void close() {
+					}
+
+				};
+			}
+
+			InputStream inputStream = attributes.openStream();
+
+			return new Source<ByteBuffer>() {
+
+				@Override
+				public ByteBuffer next() throws IOException {
+					// a fresh buffer per chunk, subscribers may hold on to what they were given
+					byte[] bytes = inputStream.readNBytes(chunkSize);
+					return (bytes.length == 0) ? null : ByteBuffer.wrap(bytes);
+				}
+
+				@Override
+				public void close() throws IOException {
+					inputStream.close();
+				}
+
+			};
+		}, executor);
+	}
+
+	static Flow.Publisher<ResourceAttributeView> tree(ResourcePath root, int maxDepth, Executor executor) {
+		if (maxDepth < 0) {
+			throw new IllegalArgumentException("maxDepth < 0");
+		}
+
+		return new ResourcePublisher<>(() -> {
+			ResourceFileStore fileStore = root.fileSystem.fileStore;
+			ResourceAttributeView start = root.fileSystem.provider.lookup(root);
+			Deque<Iterator<ResourceAttributeView>> stack = new ArrayDeque<>();
+
+			return new Source<ResourceAttributeView>() {
+
+				boolean started;
+
+				@Override
+				public ResourceAttributeView next() throws IOException {
+					if (!started) {
+						started = true;
+						push(start);
+						return start;
+					}
+
+					while (!stack.isEmpty()) {
+						Iterator<ResourceAttributeView> iterator = stack.peek();
+						if (!iterator.hasNext()) {
+							stack.pop();
+							continue;
+						}
+						ResourceAttributeView view = iterator.next();
+						push(view);
+						return view;
+					}
+
+					return null;
+				}
+
+				// directories are listed when they are reached, so pending ones expand on demand
+				private void push(ResourceAttributeView view) throws IOException {
+					if (view.attributes.isDirectory() && stack.size() < maxDepth) {
+						stack.push(fileStore.list(view.resourcePath)
+							.iterator());
+					}
+				}
+
+				@Override
+				public void close() {
+					stack.clear();
+				}
+
+			};
+		}, executor);
+	}
+
+	final SourceFactory<T>	factory;
+	final Executor			executor;
+
+	ResourcePublisher(SourceFactory<T> factory, Executor executor) {
+		this.factory = factory;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+
+		Subscription<T> subscription = new Subscription<>(subscriber, factory, executor);
+		subscriber.onSubscribe(subscription);
+	}
+
+	static class Subscription<T> implements Flow.Subscription, Runnable {
+
+		final Flow.Subscriber<? super T>	subscriber;
+		final SourceFactory<T>				factory;
+		final Executor						executor;
+		final AtomicLong					demand	= new AtomicLong();
+		// drain scheduling, only one drain runs at a time so signals are serial
+		final AtomicInteger					wip		= new AtomicInteger();
+		volatile boolean					cancelled;
+		volatile Throwable					invalidRequest;
+		Source<T>							source;
+		boolean								done;
+
+		Subscription(Flow.Subscriber<? super T> subscriber, SourceFactory<T> factory, Executor executor) {
+			this.subscriber = subscriber;
+			this.factory = factory;
+			this.executor = executor;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				invalidRequest = new IllegalArgumentException("non-positive request " + n);
+			}
+			else {
+				demand.getAndUpdate(current -> (current + n < 0) ? Long.MAX_VALUE : current + n);
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (wip.getAndIncrement() == 0) {
+				try {
+					executor.execute(this);
+				}
+				catch (RuntimeException e) {
+					cancelled = true;
+					subscriber.onError(e);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				drain();
+				missed = wip.addAndGet(-missed);
+			}
+			while (missed != 0);
+		}
+
+		private void drain() {
+			if (done) {
+				return;
+			}
+
+			try {
+				if (cancelled) {
+					finish();
+					return;
+				}
+				if (invalidRequest != null) {
+					finish();
+					subscriber.onError(invalidRequest);
+					return;
+				}
+
+				if (source == null && demand.get() > 0) {
+					source = factory.open();
+				}
+
+				while (demand.get() > 0 && !cancelled) {
+					T item = source.next();
+					if (item == null) {
+						finish();
+						subscriber.onComplete();
+						return;
+					}
+					demand.decrementAndGet();
+					subscriber.onNext(item);
+				}
+
+				if (cancelled) {
+					finish();
+				}
+			}
+			catch (Throwable t) {
+				try {
+					finish();
+				}
+				catch (Throwable suppressed) {
+					t.addSuppressed(suppressed);
+				}
+				subscriber.onError(t);
+			}
+		}
+
+		private void finish() throws IOException {
+			done = true;
+			if (source != null) {
+				Source<T> current = source;
+				source = null;
+				current.close();
+			}
+		}
+
+	}
+
+}
@@ -19,13 +19,16 @@ package com.github.rotty3000.resourcefs;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ResourceReadOnlyChannel implements SeekableByteChannel {
 
@@ -33,50 +36,41 @@ public class ResourceReadOnlyChannel implements SeekableByteChannel {
 	private final Set<? extends OpenOption> options;
 	private final long size;
 
-	private final InputStream stream;
+	// replaced by a backward seek, read by close without the monitor
+	private volatile InputStream stream;
 
-	private final long position;
-	private final Set<Boolean> closed = ConcurrentHashMap.newKeySet();
+	private long position;
+	private final AtomicBoolean closed = new AtomicBoolean();
 
 	public ResourceReadOnlyChannel(Path path, Set<? extends OpenOption> options) throws IOException {
-		this(path, options, 0);
-	}
-
-	ResourceReadOnlyChannel(Path path, Set<? extends OpenOption> options, long position) throws IOException {
 		this.path = path;
 		this.options = options;
-		this.position = position;
-		closed.add(Boolean.FALSE);
 		this.size = Files.readAttributes(path, BasicFileAttributes.class).size();
 		this.stream = Files.newInputStream(path, options.toArray(new OpenOption[0]));
 	}
 
 	@Override
 	public boolean isOpen() {
-		return !closed.isEmpty();
+		return !closed.get();
 	}
 
+	// the first close wins; it does not wait for the monitor so that a read blocked in the stream
+	// is interrupted by it rather than holding it off
 	@Override
 	public void close() throws IOException {
-		closed.removeIf(b -> {
-			try {
-				stream.close();
-				return true;
-			}
-			catch (IOException e) {
-				throw ResourceFS.thro(e);
-			}
-		});
+		if (closed.compareAndSet(false, true)) {
+			stream.close();
+		}
 	}
 
 	@Override
 	public int write(ByteBuffer src) throws IOException {
-		throw new UnsupportedOperationException();
+		throw new NonWritableChannelException();
 	}
 
 	@Override
 	public SeekableByteChannel truncate(long size) throws IOException {
-		throw new UnsupportedOperationException();
+		throw new NonWritableChannelException();
 	}
 
 	@Override
@@ -85,21 +79,77 @@ public class ResourceReadOnlyChannel implements SeekableByteChannel {
 	}
 
 	@Override
-	public int read(ByteBuffer dst) throws IOException {
+	public synchronized int read(ByteBuffer dst) throws IOException {
 		if (!isOpen()) {
-			throw new IOException("closed");
+			throw new ClosedChannelException();
+		}
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+
+		int read;
+		try {
+			if (dst.hasArray()) {
+				read = stream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+				if (read > 0) {
+					dst.position(dst.position() + read);
+				}
+			}
+			else {
+				byte[] chunk = new byte[Math.min(dst.remaining(), 8192)];
+				read = stream.read(chunk);
+				if (read > 0) {
+					dst.put(chunk, 0, read);
+				}
+			}
+		}
+		catch (IOException e) {
+			if (!isOpen()) {
+				throw new AsynchronousCloseException();
+			}
+			throw e;
 		}
-		stream.skip(position);
-		return stream.readNBytes(dst.array(), 0, dst.capacity());
+
+		if (read > 0) {
+			position += read;
+		}
+		return read;
 	}
 
 	@Override
-	public SeekableByteChannel position(long newPosition) throws IOException {
-		return new ResourceReadOnlyChannel(path, options, newPosition);
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("negative position " + newPosition);
+		}
+		if (newPosition < position) {
+			stream.close();
+			stream = Files.newInputStream(path, options.toArray(new OpenOption[0]));
+			position = 0;
+			// a close racing with the reopen may have closed the old stream only
+			if (!isOpen()) {
+				stream.close();
+				throw new AsynchronousCloseException();
+			}
+		}
+		while (position < newPosition) {
+			long skipped = stream.skip(newPosition - position);
+			if (skipped <= 0) {
+				break;
+			}
+			position += skipped;
+		}
+		position = newPosition;
+		return this;
 	}
 
 	@Override
-	public long position() throws IOException {
+	public synchronized long position() throws IOException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
 		return position;
 	}
 
@@ -0,0 +1,512 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.ClosedFileSystemException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// provider wide gate in front of every source that is opened: at most so many open at once per
+// file system, per url scheme of a file system and per url scheme of the provider, interactive
+// reads served ahead of bulk ones, and waiting file systems served round robin so that a bulk walk
+// of one does not starve the others. Over a limit opens queue until their file system's timeout.
+// A scheme the provider has no limit for allows DEFAULT_SCHEME_LIMIT, so descriptors and
+// connections stay bounded; 0 lifts a limit. While nobody queues for its scheme and its file system
+// sets no limit of its own, an open takes its permit without going through the queue.
+class ResourceScheduler {
+
+	// provider wide scheme limits, "scheme=limit,..."
+	static final String	LIMITS_PROPERTY			= "resourcefs.schemeLimits";
+	static final int	DEFAULT_SCHEME_LIMIT	= 256;
+	static final int	DEFAULT_TIMEOUT_MILLIS	= 60_000;
+
+	enum Priority {
+		INTERACTIVE, BULK
+	}
+
+	private static final ThreadLocal<Priority> priority = ThreadLocal.withInitial(() -> Priority.INTERACTIVE);
+
+	static <T> T bulk(Callable<T> callable) throws Exception {
+		Priority previous = priority.get();
+		priority.set(Priority.BULK);
+		try {
+			return callable.call();
+		}
+		finally {
+			priority.set(previous);
+		}
+	}
+
+	// for worker threads that only ever do bulk work
+	static Runnable bulk(Runnable runnable) {
+		return () -> {
+			priority.set(Priority.BULK);
+			runnable.run();
+		};
+	}
+
+	// fixed for the life of the provider, no file system can change them
+	private final Map<String, Integer>	limits;
+	private final Map<String, Scheme>	schemes	= new ConcurrentHashMap<>();
+	// tenants with waiters, one ring per priority, in the order they are served; guarded by this
+	private final List<ArrayDeque<Tenant>>	ready	= rings();
+	private int								waiting;
+
+	ResourceScheduler(Object limits) {
+		this.limits = limits(limits);
+	}
+
+	Tenant tenant(int limit, Object schemeLimits, int timeoutMillis) {
+		return new Tenant(limit, limits(schemeLimits), timeoutMillis);
+	}
+
+	// scheme -> limit as a map or as "scheme=limit,..."; 0 lifts the limit
+	static Map<String, Integer> limits(Object value) {
+		if (value == null) {
+			return Collections.emptyMap();
+		}
+
+		Map<String, Integer> limits = new LinkedHashMap<>();
+		if (value instanceof Map) {
+			((Map<?, ?>) value).forEach((scheme, limit) -> limits.put(scheme.toString(), Integer.parseInt(limit.toString())));
+		}
+		else {
+			for (String pair : value.toString()
+				.split("\\s*,\\s*")) {
+				String[] parts = pair.split("\\s*=\\s*");
+				limits.put(parts[0], Integer.parseInt(parts[1]));
+			}
+		}
+		return limits;
+	}
+
+	Permit acquire(Tenant tenant, String schemeName) throws IOException {
+		Scheme scheme = scheme(schemeName);
+		tenant.opened.incrementAndGet();
+
+		// only the scheme's limit to keep and nobody ahead, so nothing to wait for either
+		if (tenant.limit <= 0 && tenant.limit(schemeName) <= 0 && scheme.queued == 0) {
+			if (tenant.closed) {
+				throw new ClosedFileSystemException();
+			}
+			if (scheme.take()) {
+				tenant.active.incrementAndGet();
+				Permit permit = new Permit(tenant, scheme, false);
+				tenant.permits.add(permit);
+				// a close that ran meanwhile may have missed it
+				if (tenant.closed) {
+					permit.close();
+					throw new ClosedFileSystemException();
+				}
+				return permit;
+			}
+		}
+
+		Priority current = priority.get();
+
+		synchronized (this) {
+			if (tenant.closed) {
+				throw new ClosedFileSystemException();
+			}
+			if (waiting == 0 && fits(tenant, scheme)) {
+				Permit permit = grant(tenant, scheme);
+				if (permit != null) {
+					return permit;
+				}
+			}
+
+			Waiter waiter = new Waiter(scheme, System.nanoTime());
+			ArrayDeque<Waiter> queue = tenant.queues.get(current.ordinal());
+			if (queue.isEmpty()) {
+				ready.get(current.ordinal())
+					.add(tenant);
+			}
+			queue.add(waiter);
+			scheme.queued++;
+			waiting++;
+
+			dispatch();
+
+			boolean waited = false;
+			try {
+				long remaining = tenant.timeoutNanos;
+				while (waiter.permit == null && !tenant.closed) {
+					waited = true;
+					if (remaining <= 0) {
+						dequeue(tenant, current, waiter);
+						throw new IOException("Waited " + TimeUnit.NANOSECONDS.toMillis(tenant.timeoutNanos)
+							+ " ms to open a " + schemeName + " source");
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					remaining = tenant.timeoutNanos - (System.nanoTime() - waiter.since);
+				}
+			}
+			catch (InterruptedException e) {
+				if (waiter.permit == null) {
+					dequeue(tenant, current, waiter);
+				}
+				else {
+					waiter.permit.close();
+				}
+				Thread.currentThread()
+					.interrupt();
+				throw new InterruptedIOException("interrupted waiting to open a " + schemeName + " source");
+			}
+
+			// closing the file system gave back what was granted to it
+			if (waiter.permit == null || tenant.closed) {
+				throw new ClosedFileSystemException();
+			}
+
+			// not counted when it was served as soon as it queued, behind waiters held up by their own limits
+			if (waited) {
+				long nanos = System.nanoTime() - waiter.since;
+				tenant.waits++;
+				tenant.waitNanos += nanos;
+				tenant.maxWaitNanos = Math.max(tenant.maxWaitNanos, nanos);
+			}
+			return waiter.permit;
+		}
+	}
+
+	// gives back what a closed file system still holds, whatever its streams do later, and turns
+	// its waiters away
+	synchronized void close(Tenant tenant) {
+		if (tenant.closed) {
+			return;
+		}
+		tenant.closed = true;
+
+		for (int p = 0; p < tenant.queues.size(); p++) {
+			ArrayDeque<Waiter> queue = tenant.queues.get(p);
+			for (Waiter waiter : queue) {
+				waiter.scheme.queued--;
+				waiting--;
+			}
+			queue.clear();
+			ready.get(p)
+				.remove(tenant);
+		}
+
+		for (Permit permit : new ArrayList<>(tenant.permits)) {
+			if (permit.released.compareAndSet(false, true)) {
+				free(permit);
+			}
+		}
+
+		dispatch();
+		notifyAll();
+	}
+
+	// the stream gives its permit back when it is closed
+	InputStream guard(Permit permit, InputStream inputStream) {
+		return new FilterInputStream(inputStream) {
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}
+				finally {
+					permit.close();
+				}
+			}
+		};
+	}
+
+	synchronized Map<String, Object> stats(Tenant tenant) {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("limit", tenant.limit);
+		stats.put("schemeLimits", tenant.limits);
+		stats.put("timeoutNanos", tenant.timeoutNanos);
+		stats.put("active", tenant.active.get());
+		stats.put("queued", tenant.queued());
+		stats.put("opened", tenant.opened.get());
+		stats.put("waits", tenant.waits);
+		stats.put("waitNanos", tenant.waitNanos);
+		stats.put("maxWaitNanos", tenant.maxWaitNanos);
+		return stats;
+	}
+
+	synchronized Map<String, Map<String, Object>> schemeStats() {
+		Map<String, Map<String, Object>> stats = new TreeMap<>();
+		schemes.forEach((name, scheme) -> {
+			Map<String, Object> schemeStats = new LinkedHashMap<>();
+			schemeStats.put("limit", scheme.limit);
+			schemeStats.put("active", scheme.active.get());
+			schemeStats.put("queued", scheme.queued);
+			stats.put(name, schemeStats);
+		});
+		return stats;
+	}
+
+	private Scheme scheme(String name) {
+		return schemes.computeIfAbsent(name, key -> new Scheme(key, limits.getOrDefault(key, DEFAULT_SCHEME_LIMIT)));
+	}
+
+	private boolean fits(Tenant tenant, Scheme scheme) {
+		int limit = tenant.limit(scheme.name);
+		return (tenant.limit <= 0 || tenant.active.get() < tenant.limit)
+			&& (scheme.limit <= 0 || scheme.active.get() < scheme.limit)
+			&& (limit <= 0 || tenant.active(scheme.name) < limit);
+	}
+
+	// null when an open outside the queue took the scheme's last slot meanwhile
+	private Permit grant(Tenant tenant, Scheme scheme) {
+		if (!scheme.take()) {
+			return null;
+		}
+		tenant.active.incrementAndGet();
+		tenant.schemeActive.merge(scheme.name, 1, Integer::sum);
+		Permit permit = new Permit(tenant, scheme, true);
+		tenant.permits.add(permit);
+		return permit;
+	}
+
+	private void free(Permit permit) {
+		permit.tenant.active.decrementAndGet();
+		if (permit.limited) {
+			permit.tenant.schemeActive.merge(permit.scheme.name, -1, Integer::sum);
+		}
+		permit.scheme.active.decrementAndGet();
+		permit.tenant.permits.remove(permit);
+	}
+
+	private void dequeue(Tenant tenant, Priority current, Waiter waiter) {
+		ArrayDeque<Waiter> queue = tenant.queues.get(current.ordinal());
+		if (queue.remove(waiter)) {
+			if (queue.isEmpty()) {
+				ready.get(current.ordinal())
+					.remove(tenant);
+			}
+			waiter.scheme.queued--;
+			waiting--;
+			dispatch();
+		}
+	}
+
+	// hands free capacity to waiters, interactive first; a tenant that was served goes to the back of
+	// its ring, one that could not be keeps its place
+	private void dispatch() {
+		boolean granted = false;
+
+		for (int p = 0; p < ready.size(); p++) {
+			ArrayDeque<Tenant> ring = ready.get(p);
+			Tenant served;
+			do {
+				served = null;
+				for (Tenant tenant : ring) {
+					if (serve(tenant, tenant.queues.get(p))) {
+						served = tenant;
+						break;
+					}
+				}
+				if (served != null) {
+					ring.remove(served);
+					if (!served.queues.get(p)
+						.isEmpty()) {
+						ring.add(served);
+					}
+					granted = true;
+				}
+			}
+			while (served != null);
+		}
+
+		if (granted) {
+			notifyAll();
+		}
+	}
+
+	// the first waiter whose scheme has room, another scheme being full does not hold it up
+	private boolean serve(Tenant tenant, ArrayDeque<Waiter> queue) {
+		if (tenant.limit > 0 && tenant.active.get() >= tenant.limit) {
+			return false;
+		}
+		for (Iterator<Waiter> iterator = queue.iterator(); iterator.hasNext();) {
+			Waiter waiter = iterator.next();
+			Permit permit = fits(tenant, waiter.scheme) ? grant(tenant, waiter.scheme) : null;
+			if (permit != null) {
+				iterator.remove();
+				waiter.scheme.queued--;
+				waiting--;
+				waiter.permit = permit;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized void release(Permit permit) {
+		free(permit);
+		dispatch();
+	}
+
+	private synchronized void wake() {
+		dispatch();
+	}
+
+	static <T> List<ArrayDeque<T>> rings() {
+		List<ArrayDeque<T>> rings = new ArrayList<>();
+		for (int i = 0; i < Priority.values().length; i++) {
+			rings.add(new ArrayDeque<>());
+		}
+		return rings;
+	}
+
+	class Permit implements Closeable {
+
+		final Tenant				tenant;
+		final Scheme				scheme;
+		// counted under the monitor, otherwise nobody waits for it
+		final boolean				limited;
+		private final AtomicBoolean	released	= new AtomicBoolean();
+
+		Permit(Tenant tenant, Scheme scheme, boolean limited) {
+			this.tenant = tenant;
+			this.scheme = scheme;
+			this.limited = limited;
+		}
+
+		@Override
+		public void close() {
+			if (!released.compareAndSet(false, true)) {
+				return;
+			}
+			if (limited) {
+				release(this);
+			}
+			else {
+				free(this);
+				// a waiter that queued meanwhile either found this slot free when it was queued or is
+				// served here
+				if (scheme.queued > 0) {
+					wake();
+				}
+			}
+		}
+
+	}
+
+	// one per file system
+	static class Tenant {
+
+		final int							limit;
+		// scheme -> limit for this file system alone
+		final Map<String, Integer>			limits;
+		final long							timeoutNanos;
+		final AtomicInteger					active			= new AtomicInteger();
+		final AtomicLong					opened			= new AtomicLong();
+		volatile boolean					closed;
+		// every permit not given back yet, including those taken outside the queue
+		final Set<Permit>					permits			= ConcurrentHashMap.newKeySet();
+		// guarded by the scheduler
+		final List<ArrayDeque<Waiter>>		queues			= rings();
+		final Map<String, Integer>			schemeActive	= new HashMap<>();
+		long								waits;
+		long								waitNanos;
+		long								maxWaitNanos;
+
+		Tenant(int limit, Map<String, Integer> limits, int timeoutMillis) {
+			this.limit = limit;
+			this.limits = limits;
+			this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		}
+
+		int limit(String scheme) {
+			return limits.getOrDefault(scheme, 0);
+		}
+
+		int active(String scheme) {
+			return schemeActive.getOrDefault(scheme, 0);
+		}
+
+		int queued() {
+			int queued = 0;
+			for (ArrayDeque<Waiter> queue : queues) {
+				queued += queue.size();
+			}
+			return queued;
+		}
+
+	}
+
+	static class Scheme {
+
+		final String		name;
+		final int			limit;
+		final AtomicInteger	active	= new AtomicInteger();
+		// written under the scheduler, read outside it by opens that may skip the queue
+		volatile int		queued;
+
+		Scheme(String name, int limit) {
+			this.name = name;
+			this.limit = limit;
+		}
+
+		// a slot below the limit, if there is one
+		boolean take() {
+			if (limit <= 0) {
+				active.incrementAndGet();
+				return true;
+			}
+			int current;
+			do {
+				current = active.get();
+				if (current >= limit) {
+					return false;
+				}
+			}
+			while (!active.compareAndSet(current, current + 1));
+			return true;
+		}
+
+	}
+
+	static class Waiter {
+
+		final Scheme	scheme;
+		final long		since;
+		Permit			permit;
+
+		Waiter(Scheme scheme, long since) {
+			this.scheme = scheme;
+			this.since = since;
+		}
+
+	}
+
+}
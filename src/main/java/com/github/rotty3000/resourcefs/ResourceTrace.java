@@ -0,0 +1,214 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+// records the order in which paths are first read and prewarms the next mount from it
+class ResourceTrace {
+
+	static final int	MAGIC	= 0x52465354;
+	static final int	VERSION	= 1;
+
+	final ResourceFileSystem	fileSystem;
+	final Path					file;
+	final long					prewarmLimit;
+	final Set<String>			seen	= ConcurrentHashMap.newKeySet();
+	final Queue<String>			order	= new ConcurrentLinkedQueue<>();
+	private volatile ExecutorService	prewarmer;
+
+	ResourceTrace(ResourceFileSystem fileSystem, Path file, long prewarmLimit) {
+		this.fileSystem = fileSystem;
+		this.file = file;
+		this.prewarmLimit = prewarmLimit;
+	}
+
+	void record(ResourcePath resourcePath) {
+		String path = resourcePath.toUri().getPath();
+		if (seen.add(path)) {
+			order.add(path);
+		}
+	}
+
+	void prewarm() {
+		if (!Files.isRegularFile(file)) {
+			return;
+		}
+
+		ExecutorService executor = ResourceFS.newExecutor("ResourceFS-prewarm", 1);
+		prewarmer = executor;
+		executor.execute(() -> {
+			try {
+				prewarm(read(file));
+			}
+			catch (IOException | ClosedFileSystemException e) {
+				// a stale or broken trace, or a file system closed early, only costs the warm start
+			}
+			finally {
+				executor.shutdown();
+			}
+		});
+	}
+
+	private void prewarm(List<String> paths) throws IOException {
+		ResourceContents.Pool bodies = fileSystem.provider.contents.bodies;
+		List<ResourcePath> warm = new ArrayList<>();
+		long budget = prewarmLimit;
+
+		for (String path : paths) {
+			if (Thread.currentThread()
+				.isInterrupted()) {
+				return;
+			}
+
+			ResourceAttributeView view = fileSystem.fileStore.lookup(new ResourcePath(fileSystem, path));
+			if (view == null || !view.attributes.isRegularFile()) {
+				continue;
+			}
+
+			ResourceFileAttributes attributes = (ResourceFileAttributes) view.attributes;
+			// in-memory and mapped sources are warm already
+			if (attributes.buffer != null || attributes.deflated != null) {
+				continue;
+			}
+			// local files only need to pass through the page cache
+			if (attributes.localPath() == null) {
+				// held already for another path or file system, no read and nothing counted
+				Object identity = ResourceContents.identity(attributes);
+				ByteBuffer body = (identity == null) ? null : bodies.get(identity);
+				if (body != null) {
+					attributes.prewarmed = fileSystem.fileStore.hold(body);
+					continue;
+				}
+				if (attributes.size > budget) {
+					continue;
+				}
+				budget -= Math.max(0, attributes.size);
+			}
+			warm.add(view.resourcePath);
+		}
+
+		new ResourceBatch(Runtime.getRuntime()
+			.availableProcessors(), (path, buffer) -> {
+				ResourceAttributeView view = ((ResourcePath) path).view;
+				if (view != null && ((ResourceFileAttributes) view.attributes).localPath() == null) {
+					ResourceFileAttributes attributes = (ResourceFileAttributes) view.attributes;
+					Object identity = ResourceContents.identity(attributes);
+					ByteBuffer body = buffer.asReadOnlyBuffer();
+					attributes.prewarmed = (identity == null) ? body
+						: fileSystem.fileStore.hold(bodies.share(identity, body));
+				}
+			}).read(warm);
+	}
+
+	void close() throws IOException {
+		ExecutorService executor = prewarmer;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+
+		if (order.isEmpty()) {
+			return;
+		}
+
+		// written aside and moved in place so concurrent mounts never see half a trace
+		Path parent = file.toAbsolutePath()
+			.getParent();
+		Files.createDirectories(parent);
+		Path temp = Files.createTempFile(parent, file.getFileName()
+			.toString(), ".tmp");
+
+		try {
+			write(temp, new ArrayList<>(order));
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	// front coded, each path stores how much it shares with the one before
+	static void write(Path file, List<String> paths) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(paths.size());
+
+			String previous = "";
+			for (String path : paths) {
+				int shared = 0;
+				int max = Math.min(Math.min(previous.length(), path.length()), 0xffff);
+				while (shared < max && previous.charAt(shared) == path.charAt(shared)) {
+					shared++;
+				}
+				out.writeShort(shared);
+				out.writeUTF(path.substring(shared));
+				previous = path;
+			}
+		}
+	}
+
+	static List<String> read(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a trace " + file);
+			}
+
+			int count = in.readInt();
+			List<String> paths = new ArrayList<>(count);
+			String previous = "";
+			for (int i = 0; i < count; i++) {
+				int shared = in.readUnsignedShort();
+				previous = previous.substring(0, shared)
+					.concat(in.readUTF());
+				paths.add(previous);
+			}
+			return paths;
+		}
+	}
+
+	static ResourceTrace create(ResourceFileSystem fileSystem, Map<String, ?> env) {
+		Object value = env.get(ResourceFS.TRACE);
+		if (value == null) {
+			return null;
+		}
+
+		Path file = (value instanceof Path) ? (Path) value : Paths.get(value.toString());
+
+		return new ResourceTrace(fileSystem, file,
+			ResourceFileSystem.option(env, ResourceFS.PREWARM_LIMIT, 64 * 1024 * 1024));
+	}
+
+}
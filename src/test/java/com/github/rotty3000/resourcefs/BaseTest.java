@@ -22,16 +22,27 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import com.github.rotty3000.resourcefs.ResourceFS;
 
 public abstract class BaseTest {
 
+	// benchmarks only run when asked for, see the scaling profile
+	static final String BENCHMARKS = "resourcefs.scaling";
+
+	static boolean benchmarking() {
+		return System.getProperty(BENCHMARKS) != null;
+	}
+
 	FileSystem createFileSystem(String authority, List<URL> urls) throws Exception {
+		return createFileSystem(authority, Collections.singletonMap(ResourceFS.URLS, urls));
+	}
+
+	FileSystem createFileSystem(String authority, Map<String, ?> env) throws Exception {
 		URI fsRoot = new URI(ResourceFS.SCHEME, authority, null, null, null);
 
-		return FileSystems.newFileSystem(
-			fsRoot, Collections.singletonMap(ResourceFS.URLS, urls));
+		return FileSystems.newFileSystem(fsRoot, env);
 	}
 
 }
@@ -16,21 +16,37 @@
 
 package com.github.rotty3000.resourcefs;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystemAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.jar.JarFile;
 import java.util.stream.Collectors;
@@ -132,6 +148,79 @@ public class BasicTest extends BaseTest {
 		}
 	}
 
+	@Test
+	public void existsAndMisses() throws Exception {
+		URL url = getClass().getResource("jars/resource.txt");
+		List<URL> urls = Arrays.asList(url);
+
+		try (FileSystem fileSystem = createFileSystem("foo", urls)) {
+			assertNotNull(fileSystem);
+
+			Path file = fileSystem.getPath(url.getPath());
+
+			assertTrue(Files.exists(file));
+			assertTrue(Files.isRegularFile(file));
+			assertTrue(Files.isDirectory(file.getParent()));
+			assertTrue(ResourceFS.exists(fileSystem, url.getPath()));
+
+			Path missing = fileSystem.getPath(url.getPath() + ".missing");
+
+			assertFalse(Files.exists(missing));
+			assertTrue(Files.notExists(missing));
+			assertFalse(ResourceFS.exists(fileSystem, url.getPath() + ".missing"));
+			assertFalse(ResourceFS.exists(fileSystem, "/does/not/exist"));
+		}
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void readAttributesOfMissingFile() throws Exception {
+		List<URL> urls = Arrays.asList(getClass().getResource("jars/resource.txt"));
+
+		try (FileSystem fileSystem = createFileSystem("foo", urls)) {
+			Files.readAttributes(fileSystem.getPath("/does/not/exist"), BasicFileAttributes.class);
+		}
+	}
+
+	@Test
+	public void directoryStreamCarriesAttributes() throws Exception {
+		List<URL> urls = Arrays.asList(getClass().getResource("jars/guava-14.0.1.jar"),
+			getClass().getResource("jars/jquantlib-0.1.2.jar"));
+
+		try (FileSystem fileSystem = createFileSystem("foo", urls)) {
+			Path rootDir = fileSystem.getRootDirectories()
+				.iterator()
+				.next();
+
+			List<Path> all = Files.walk(rootDir)
+				.collect(Collectors.toList());
+
+			assertEquals(2, all.stream().filter(Files::isRegularFile).count());
+
+			for (Path path : all) {
+				ResourceAttributeView view = ((ResourcePath) path).view;
+
+				assertNotNull(view);
+				assertSame(view.getAttributes(), Files.readAttributes(path, BasicFileAttributes.class));
+			}
+
+			Path jarsDir = all.stream()
+				.filter(Files::isRegularFile)
+				.findFirst()
+				.get()
+				.getParent();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+				jarsDir, p -> p.toString().endsWith("guava-14.0.1.jar"))) {
+
+				Iterator<Path> iterator = stream.iterator();
+
+				assertTrue(iterator.hasNext());
+				assertTrue(Files.isRegularFile(iterator.next()));
+				assertFalse(iterator.hasNext());
+			}
+		}
+	}
+
 	@Test
 	public void readFile() throws Exception {
 		List<URL> urls = Arrays.asList(getClass().getResource("jars/resource.txt"));
@@ -183,4 +272,150 @@ public class BasicTest extends BaseTest {
 		}
 	}
 
+	@Test
+	public void exportFile() throws Exception {
+		URL url = getClass().getResource("jars/guava-14.0.1.jar");
+		List<URL> urls = Arrays.asList(url);
+
+		try (FileSystem fileSystem = createFileSystem("foo", urls)) {
+			Path source = fileSystem.getPath(url.getPath());
+			Path target = new File(tmp.getRoot(), "guava.jar").toPath();
+
+			ResourceFS.export(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+
+			assertEquals(Files.size(source), Files.size(target));
+			assertEquals(Files.getLastModifiedTime(source), Files.getLastModifiedTime(target));
+
+			try (JarFile jar = new JarFile(target.toFile())) {
+				assertEquals("com.google.guava", jar.getManifest().getMainAttributes().getValue("Bundle-SymbolicName"));
+			}
+		}
+	}
+
+	@Test
+	public void providerCopyOfADirectory() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(getClass().getResource("jars/guava-14.0.1.jar")));
+		env.put(ResourceFS.OVERLAY, true);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Path source = fileSystem.getPath("/com/google");
+			Path target = tmp.newFolder()
+				.toPath()
+				.resolve("google");
+
+			// Files.copy would not get here, the target belongs to another provider
+			fileSystem.provider()
+				.copy(source, target);
+
+			assertTrue(Files.isDirectory(target));
+
+			try {
+				fileSystem.provider()
+					.copy(source, target);
+				fail();
+			}
+			catch (FileAlreadyExistsException e) {
+			}
+
+			fileSystem.provider()
+				.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+
+			assertEquals(Files.getLastModifiedTime(source), Files.getLastModifiedTime(target));
+
+			Files.createFile(target.resolve("child"));
+
+			try {
+				fileSystem.provider()
+					.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+				fail();
+			}
+			catch (DirectoryNotEmptyException e) {
+			}
+		}
+	}
+
+	@Test
+	public void exportTree() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(getClass().getResource("jars/guava-14.0.1.jar")));
+		env.put(ResourceFS.OVERLAY, true);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Path target = tmp.newFolder().toPath();
+
+			ResourceFS.export(fileSystem.getPath("/com"), target.resolve("com"), 4, StandardCopyOption.COPY_ATTRIBUTES);
+			ResourceFS.export(fileSystem.getPath("/META-INF"), target.resolve("META-INF"), 4);
+
+			Path source = fileSystem.getPath("/com/google/common/collect/ImmutableList.class");
+			Path exported = target.resolve("com/google/common/collect/ImmutableList.class");
+
+			assertEquals(1597, Files.find(target, 30, (p, a) -> a.isRegularFile())
+				.count());
+			assertEquals(Files.size(source), Files.size(exported));
+			assertEquals(Files.getLastModifiedTime(source), Files.getLastModifiedTime(exported));
+			assertEquals(Files.getLastModifiedTime(fileSystem.getPath("/com/google")),
+				Files.getLastModifiedTime(target.resolve("com/google")));
+		}
+	}
+
+	@Test(expected = FileAlreadyExistsException.class)
+	public void exportDoesNotReplace() throws Exception {
+		URL url = getClass().getResource("jars/resource.txt");
+
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(url))) {
+			Path target = tmp.newFile().toPath();
+
+			ResourceFS.export(fileSystem.getPath(url.getPath()), target);
+		}
+	}
+
+	@Test
+	public void sizeAwareInputStream() throws Exception {
+		URL url = getClass().getResource("jars/guava-14.0.1.jar");
+		byte[] expected = Files.readAllBytes(new File(url.toURI()).toPath());
+
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(url));
+		env.put(ResourceFS.READ_AHEAD, 512);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Path path = fileSystem.getPath(url.getPath());
+
+			try (InputStream inputStream = Files.newInputStream(path)) {
+				assertEquals(expected.length, inputStream.available());
+				assertEquals(expected[0], (byte) inputStream.read());
+				assertEquals(expected.length - 1001, inputStream.skip(expected.length - 1001));
+				assertEquals(1000, inputStream.available());
+				assertArrayEquals(Arrays.copyOfRange(expected, expected.length - 1000, expected.length),
+					inputStream.readAllBytes());
+				assertEquals(-1, inputStream.read());
+			}
+
+			File copy = tmp.newFile();
+
+			try (InputStream inputStream = Files.newInputStream(path);
+				FileOutputStream outputStream = new FileOutputStream(copy)) {
+
+				assertEquals(expected[0], (byte) inputStream.read());
+				assertEquals(expected.length - 1, inputStream.transferTo(outputStream));
+			}
+
+			assertArrayEquals(Arrays.copyOfRange(expected, 1, expected.length), Files.readAllBytes(copy.toPath()));
+			assertArrayEquals(expected, Files.readAllBytes(path));
+
+			// straight to a channel, as for a socket
+			File channelCopy = tmp.newFile();
+
+			try (ResourceInputStream inputStream = (ResourceInputStream) Files.newInputStream(path);
+				FileChannel target = FileChannel.open(channelCopy.toPath(), StandardOpenOption.WRITE)) {
+
+				assertEquals(expected[0], (byte) inputStream.read());
+				assertEquals(expected.length - 1, inputStream.transferTo(target));
+			}
+
+			assertArrayEquals(Arrays.copyOfRange(expected, 1, expected.length), Files.readAllBytes(channelCopy.toPath()));
+		}
+	}
+
 }
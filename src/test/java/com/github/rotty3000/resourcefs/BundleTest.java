@@ -0,0 +1,129 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+
+public class BundleTest extends BaseTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	Framework framework;
+
+	@Before
+	public void before() throws Exception {
+		FrameworkFactory factory = ServiceLoader.load(FrameworkFactory.class)
+			.iterator()
+			.next();
+
+		Map<String, String> configuration = new HashMap<>();
+		configuration.put(Constants.FRAMEWORK_STORAGE, tmp.newFolder()
+			.getAbsolutePath());
+		configuration.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+
+		framework = factory.newFramework(configuration);
+		framework.init();
+		framework.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		framework.stop();
+		framework.waitForStop(10000);
+	}
+
+	@Test
+	public void bundlesAreTrackedIncrementally() throws Exception {
+		Bundle a = framework.getBundleContext()
+			.installBundle("a", bundle("a", "com/acme/a.txt", "alpha"));
+
+		try (FileSystem fileSystem = createFileSystem("foo",
+			Collections.singletonMap(ResourceFS.BUNDLES, framework.getBundleContext()))) {
+
+			Path aText = fileSystem.getPath("/" + a.getBundleId() + "/com/acme/a.txt");
+			assertEquals("alpha", read(aText));
+			assertTrue(Files.isRegularFile(fileSystem.getPath("/" + a.getBundleId() + "/META-INF/MANIFEST.MF")));
+
+			// installs show up without a remount
+			Bundle b = framework.getBundleContext()
+				.installBundle("b", bundle("b", "com/acme/b.txt", "beta"));
+			Path bText = fileSystem.getPath("/" + b.getBundleId() + "/com/acme/b.txt");
+			assertEquals("beta", read(bText));
+			// the manifest and the text file
+			assertEquals(2L, Files.getAttribute(fileSystem.getPath("/" + b.getBundleId()), "resource:fileCount"));
+
+			// an update replaces the bundle's entries
+			a.update(bundle("a", "com/acme/other.txt", "gamma"));
+			assertFalse(Files.exists(aText));
+			assertEquals("gamma", read(fileSystem.getPath("/" + a.getBundleId() + "/com/acme/other.txt")));
+
+			// and an uninstall removes them
+			b.uninstall();
+			assertFalse(Files.exists(bText));
+			assertFalse(Files.exists(fileSystem.getPath("/" + b.getBundleId())));
+		}
+	}
+
+	String read(Path path) throws Exception {
+		return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+	}
+
+	static InputStream bundle(String symbolicName, String entry, String content) throws Exception {
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue("Bundle-ManifestVersion", "2");
+		attributes.putValue("Bundle-SymbolicName", symbolicName);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JarOutputStream jar = new JarOutputStream(bytes, manifest)) {
+			jar.putNextEntry(new JarEntry(entry));
+			jar.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+}
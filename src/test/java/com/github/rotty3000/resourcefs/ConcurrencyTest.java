@@ -0,0 +1,397 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConcurrencyTest extends BaseTest {
+
+	static final int THREADS = Math.max(4, Runtime.getRuntime()
+		.availableProcessors());
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	Path		root;
+	byte[]		content;
+
+	@Before
+	public void before() throws Exception {
+		root = tmp.newFolder("root")
+			.toPath();
+
+		content = new byte[64 * 1024];
+		new Random(11).nextBytes(content);
+
+		for (int i = 0; i < 8; i++) {
+			Path dir = Files.createDirectories(root.resolve("d" + i));
+			for (int j = 0; j < 16; j++) {
+				Files.write(dir.resolve("f" + j + ".bin"), Arrays.copyOf(content, 1024 * (j + 1)));
+			}
+		}
+	}
+
+	// operations run by stress so far, for the throughput benchmark
+	static final AtomicLong operations = new AtomicLong();
+
+	// ops/s of the stress workloads, a benchmark left out of the default test run, see ScalingTest
+	@Test
+	public void benchmarkThroughput() throws Exception {
+		assumeTrue(benchmarking());
+
+		throughput("mount/close", this::mountAndCloseWithCollidingAuthorities);
+		throughput("channels", this::openReadAndCloseChannels);
+		throughput("list", this::listDirectories);
+		throughput("attributes", this::readAttributes);
+	}
+
+	@Test
+	public void mountAndCloseWithCollidingAuthorities() throws Exception {
+		AtomicInteger mounted = new AtomicInteger();
+		AtomicInteger collided = new AtomicInteger();
+		AtomicReference<ResourceFS> provider = new AtomicReference<>();
+
+		stress(200, (thread, iteration) -> {
+			Map<String, Object> env = new HashMap<>();
+			env.put(ResourceFS.BUFFERS, Map.of("a.txt", ByteBuffer.wrap(("" + thread).getBytes(StandardCharsets.UTF_8))));
+
+			FileSystem fileSystem;
+			try {
+				fileSystem = createFileSystem("stress-" + (iteration % 4), env);
+			}
+			catch (FileSystemAlreadyExistsException e) {
+				collided.incrementAndGet();
+				return;
+			}
+
+			try {
+				provider.set(((ResourceFileSystem) fileSystem).provider);
+				// whoever won the authority sees its own content
+				assertEquals("" + thread, new String(Files.readAllBytes(fileSystem.getPath("/a.txt")), StandardCharsets.UTF_8));
+				mounted.incrementAndGet();
+			}
+			finally {
+				fileSystem.close();
+			}
+
+			assertFalse(fileSystem.isOpen());
+		});
+
+		assertEquals(THREADS * 200, mounted.get() + collided.get());
+		assertTrue(mounted.get() > 0);
+		for (int i = 0; i < 4; i++) {
+			assertFalse(provider.get().fileSystems.containsKey("stress-" + i));
+		}
+	}
+
+	@Test
+	public void openReadAndCloseChannels() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(root.toUri()
+			.toURL()));
+		env.put(ResourceFS.BUFFERS, Map.of("mem/f.bin", ByteBuffer.wrap(content)));
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			stress(500, (thread, iteration) -> {
+				int j = iteration % 16;
+				Path path = (iteration % 2 == 0) ? fileSystem.getPath(root.resolve("d" + (thread % 8) + "/f" + j + ".bin")
+					.toString()) : fileSystem.getPath("/mem/f.bin");
+
+				try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+					int offset = (int) ((iteration * 31L) % (channel.size() - 64));
+					ByteBuffer dst = ByteBuffer.allocate(64);
+					channel.position(offset);
+					while (dst.hasRemaining() && channel.read(dst) > 0) {
+						// fill
+					}
+					assertArrayEquals(Arrays.copyOfRange(content, offset, offset + 64), dst.array());
+				}
+			});
+		}
+	}
+
+	@Test
+	public void closeSharedChannelWhileReading() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(root.toUri()
+			.toURL()))) {
+
+			for (int round = 0; round < 20; round++) {
+				SeekableByteChannel channel = Files.newByteChannel(fileSystem.getPath(root.resolve("d0/f15.bin")
+					.toString()));
+				AtomicInteger closedSeen = new AtomicInteger();
+
+				stress(50, (thread, iteration) -> {
+					if (thread == 0 && iteration == 25) {
+						channel.close();
+					}
+					try {
+						channel.read(ByteBuffer.allocate(16));
+					}
+					catch (ClosedChannelException e) {
+						closedSeen.incrementAndGet();
+					}
+				});
+
+				assertFalse(channel.isOpen());
+				assertTrue(closedSeen.get() > 0);
+				// closing again is a no-op
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void closeChannelBlockedInRead() throws Exception {
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch released = new CountDownLatch(1);
+		URL url = new URL("blocking", "", -1, "/blocked.bin", new URLStreamHandler() {
+
+			@Override
+			protected URLConnection openConnection(URL u) {
+				return new URLConnection(u) {
+
+					@Override
+					public void connect() {
+					}
+
+					@Override
+					public long getContentLengthLong() {
+						return 1;
+					}
+
+					@Override
+					public InputStream getInputStream() {
+						return new InputStream() {
+
+							// never delivers, until closed
+							@Override
+							public int read() throws IOException {
+								reading.countDown();
+								try {
+									released.await();
+								}
+								catch (InterruptedException e) {
+									throw new IOException(e);
+								}
+								throw new IOException("Stream closed");
+							}
+
+							@Override
+							public void close() {
+								released.countDown();
+							}
+
+						};
+					}
+				};
+			}
+		});
+
+		try (FileSystem fileSystem = createFileSystem("foo", Collections.singletonMap(ResourceFS.URLS, List.of(url)))) {
+			SeekableByteChannel channel = Files.newByteChannel(fileSystem.getPath("/blocked.bin"));
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			try {
+				Future<Integer> read = executor.submit(() -> channel.read(ByteBuffer.allocate(1)));
+				assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+				// not held off by the blocked read
+				channel.close();
+
+				assertFalse(channel.isOpen());
+				try {
+					read.get(10, TimeUnit.SECONDS);
+					fail();
+				}
+				catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof ClosedChannelException);
+				}
+			}
+			finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	@Test
+	public void listDirectories() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(root.toUri()
+			.toURL()))) {
+
+			Path top = fileSystem.getPath(root.toString());
+
+			stress(200, (thread, iteration) -> {
+				Path dir = fileSystem.getPath(root.resolve("d" + ((thread + iteration) % 8))
+					.toString());
+				try (Stream<Path> list = Files.list(dir)) {
+					assertEquals(16, list.count());
+				}
+				if (iteration % 50 == 0) {
+					try (Stream<Path> walk = Files.walk(top)) {
+						assertEquals(1 + 8 + 8 * 16, walk.count());
+					}
+				}
+			});
+		}
+	}
+
+	@Test
+	public void lookupsWhileExpandingGrowsTheFilter() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(root.toUri()
+				.toURL()))) {
+
+				// every thread expands its own directory, each expansion may rebuild the filter
+				stress(1, (thread, iteration) -> {
+					Path dir = root.resolve("d" + (thread % 8));
+					try (Stream<Path> list = Files.list(fileSystem.getPath(dir.toString()))) {
+						assertEquals(16, list.count());
+					}
+					for (int i = 0; i < 8; i++) {
+						for (int j = 0; j < 16; j++) {
+							String path = root.resolve("d" + i + "/f" + j + ".bin")
+								.toString();
+							assertTrue(path, Files.exists(fileSystem.getPath(path)));
+						}
+					}
+				});
+			}
+		}
+	}
+
+	@Test
+	public void readAttributes() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(root.toUri()
+			.toURL()))) {
+
+			List<Path> files;
+			try (Stream<Path> walk = Files.walk(fileSystem.getPath(root.toString()))) {
+				files = walk.filter(Files::isRegularFile)
+					.sorted()
+					.collect(Collectors.toList());
+			}
+
+			stress(2000, (thread, iteration) -> {
+				Path path = files.get((thread * 7 + iteration) % files.size());
+				int j = Integer.parseInt(path.getFileName()
+					.toString()
+					.replaceAll("\\D", ""));
+
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				assertEquals(1024L * (j + 1), attributes.size());
+				assertEquals(attributes.size(), Files.readAttributes(path, "resource:size")
+					.get("size"));
+				assertTrue(Files.exists(path));
+				assertFalse(Files.exists(fileSystem.getPath(path + ".missing")));
+			});
+		}
+	}
+
+	interface Task {
+
+		void run(int thread, int iteration) throws Exception;
+
+	}
+
+	interface Workload {
+
+		void run() throws Exception;
+
+	}
+
+	static void throughput(String name, Workload workload) throws Exception {
+		long before = operations.get();
+		long begin = System.nanoTime();
+		workload.run();
+		long elapsed = System.nanoTime() - begin;
+
+		System.out.printf("%s: %d threads, %,.0f ops/s%n", name, THREADS,
+			(operations.get() - before) / (elapsed / 1e9));
+	}
+
+	// runs iterations of the task on every thread at once, failing on the first error
+	static void stress(int iterations, Task task) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+
+		try {
+			for (int t = 0; t < THREADS; t++) {
+				int thread = t;
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < iterations; i++) {
+						task.run(thread, i);
+					}
+					return null;
+				}));
+			}
+
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			operations.addAndGet((long) THREADS * iterations);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
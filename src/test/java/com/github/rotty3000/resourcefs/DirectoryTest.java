@@ -0,0 +1,318 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectoryTest extends BaseTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	Path classes;
+
+	@Before
+	public void before() throws Exception {
+		classes = tmp.newFolder("classes")
+			.toPath();
+
+		for (int i = 0; i < 10; i++) {
+			Path dir = Files.createDirectories(classes.resolve("com/acme/p" + i));
+			for (int j = 0; j < 20; j++) {
+				Files.write(dir.resolve("C" + j + ".class"), ("p" + i + "/C" + j).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		Files.createDirectories(classes.resolve("META-INF"));
+		Files.write(classes.resolve("META-INF/MANIFEST.MF"), "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void directoriesAreListedLazily() throws Exception {
+		URL url = classes.toUri()
+			.toURL();
+
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(url))) {
+			ResourceFileStore fileStore = ((ResourceFileSystem) fileSystem).fileStore;
+			Path root = fileSystem.getPath(classes.toString());
+
+			assertTrue(Files.isDirectory(root));
+			assertEquals(1, fileStore.pending.size());
+
+			Path file = fileSystem.getPath(classes.resolve("com/acme/p3/C7.class")
+				.toString());
+
+			assertEquals("p3/C7", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+			// only the ancestors of the file were listed
+			assertTrue(fileStore.pending.size() > 1);
+			assertFalse(Files.exists(fileSystem.getPath(classes.resolve("com/acme/p3/Missing.class")
+				.toString())));
+
+			assertEquals(201, Files.find(root, 10, (p, a) -> a.isRegularFile())
+				.count());
+			assertTrue(fileStore.pending.isEmpty());
+		}
+	}
+
+	@Test
+	public void concurrentFirstListingsAreCoalesced() throws Exception {
+		URL url = classes.toUri()
+			.toURL();
+
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(url))) {
+			Path dir = fileSystem.getPath(classes.resolve("com/acme")
+				.toString());
+
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			try {
+				List<Callable<Set<Path>>> tasks = new ArrayList<>();
+				for (int i = 0; i < 32; i++) {
+					tasks.add(() -> Files.list(dir)
+						.collect(Collectors.toSet()));
+				}
+
+				Set<Path> expected = null;
+				for (Future<Set<Path>> future : executor.invokeAll(tasks)) {
+					Set<Path> listing = future.get();
+					assertEquals(10, listing.size());
+					if (expected != null) {
+						assertEquals(expected, listing);
+					}
+					expected = listing;
+				}
+			}
+			finally {
+				executor.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void eagerExpansionInBackground() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(classes.toUri()
+			.toURL()));
+		env.put(ResourceFS.EXPAND_EAGERLY, true);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			ResourceFileStore fileStore = ((ResourceFileSystem) fileSystem).fileStore;
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!fileStore.pending.isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+
+			assertTrue(fileStore.pending.isEmpty());
+			assertEquals(201, fileStore.views.values()
+				.stream()
+				.filter(view -> view.attributes.isRegularFile())
+				.count());
+		}
+	}
+
+	@Test
+	public void overlayDirectoryKeepsPriority() throws Exception {
+		URL jar = getClass().getResource("jars/guava-14.0.1.jar");
+
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(classes.toUri()
+			.toURL(), jar));
+		env.put(ResourceFS.OVERLAY, true);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Path manifest = fileSystem.getPath("/META-INF/MANIFEST.MF");
+
+			assertEquals("Manifest-Version: 1.0\n", new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8));
+			assertEquals(Arrays.asList(new URL("jar:" + jar + "!/META-INF/MANIFEST.MF")),
+				Files.getAttribute(manifest, "resource:shadowed"));
+			assertTrue(Files.isRegularFile(fileSystem.getPath("/com/acme/p0/C0.class")));
+			assertTrue(Files.isRegularFile(fileSystem.getPath("/com/google/common/base/Optional.class")));
+
+			ResourceClassLoader classLoader = new ResourceClassLoader(fileSystem, null);
+
+			assertEquals(classes.resolve("com/acme/p1/C1.class")
+				.toUri()
+				.toURL(), classLoader.getResource("com/acme/p1/C1.class"));
+		}
+	}
+
+	@Test
+	public void digestsAreCachedUntilTheFileChanges() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(classes.toUri()
+			.toURL()));
+		env.put(ResourceFS.DIGEST_ALGORITHMS, "SHA-256, MD5");
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Path local = classes.resolve("com/acme/p1/C1.class");
+			Path file = fileSystem.getPath(local.toString());
+
+			@SuppressWarnings("unchecked")
+			Map<String, String> digest = (Map<String, String>) Files.readAttributes(file, "resource:digest")
+				.get("digest");
+
+			assertEquals(hex("SHA-256", Files.readAllBytes(local)), digest.get("SHA-256"));
+			assertEquals(hex("MD5", Files.readAllBytes(local)), digest.get("MD5"));
+			// not computed for wildcard reads
+			assertFalse(Files.readAttributes(file, "resource:*")
+				.containsKey("digest"));
+
+			ResourceAttributeView view = ((ResourceFileSystem) fileSystem).provider.lookup(file);
+			ResourceFileAttributes attributes = (ResourceFileAttributes) view.attributes;
+			ResourceDigests cached = attributes.digests;
+			assertEquals(digest, view.digest());
+			assertTrue(cached == attributes.digests);
+
+			Files.write(local, "changed".getBytes(StandardCharsets.UTF_8));
+			Files.setLastModifiedTime(local, FileTime.fromMillis(cached.lastModified + 2000));
+
+			assertEquals(hex("SHA-256", "changed".getBytes(StandardCharsets.UTF_8)), view.digest()
+				.get("SHA-256"));
+		}
+	}
+
+	@Test
+	public void digestSubtree() throws Exception {
+		URL url = classes.toUri()
+			.toURL();
+
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(url))) {
+			Map<Path, Map<String, String>> digests = ResourceFS.digest(fileSystem.getPath(classes.resolve("com")
+				.toString()), 4);
+
+			assertEquals(200, digests.size());
+			assertEquals(hex("SHA-256", "p4/C9".getBytes(StandardCharsets.UTF_8)),
+				digests.get(fileSystem.getPath(classes.resolve("com/acme/p4/C9.class")
+					.toString()))
+					.get("SHA-256"));
+		}
+	}
+
+	@Test
+	public void subtreeAggregates() throws Exception {
+		URL jar = getClass().getResource("jars/guava-14.0.1.jar");
+		Files.setLastModifiedTime(classes.resolve("com/acme/p2/C3.class"), FileTime.fromMillis(2_000_000_000_000L));
+
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(classes.toUri()
+			.toURL(), jar));
+		env.put(ResourceFS.OVERLAY, true);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			ResourceFileStore resourceFileStore = ((ResourceFileSystem) fileSystem).fileStore;
+			Path acme = fileSystem.getPath("/com/acme");
+
+			// all attributes at once do not list anything
+			Map<String, Object> all = Files.readAttributes(acme, "resource:*");
+			assertFalse(all.containsKey("fileCount"));
+			assertTrue(resourceFileStore.pending.containsKey(acme));
+
+			// the first read by name lists what is pending below /com/acme, and only that
+			assertEquals(200L, Files.getAttribute(acme, "resource:fileCount"));
+			assertEquals(200L, Files.readAttributes(acme, "resource:*")
+				.get("fileCount"));
+			assertEquals(FileTime.fromMillis(2_000_000_000_000L), Files.getAttribute(acme, "resource:newestModifiedTime"));
+			assertTrue(resourceFileStore.pending.containsKey(fileSystem.getPath("/META-INF")));
+
+			// the jar's manifest is replaced by the directory's once the walk lists the root,
+			// aggregates must then match what a walk sees
+			for (Path dir : Files.walk(fileSystem.getPath("/com"))
+				.filter(Files::isDirectory)
+				.collect(Collectors.toList())) {
+
+				assertAggregates(dir);
+			}
+			assertAggregates(fileSystem.getPath("/META-INF"));
+
+			FileStore fileStore = fileSystem.getFileStores()
+				.iterator()
+				.next();
+			List<Path> files = Files.list(fileSystem.getPath("/com")
+				.getParent())
+				.flatMap(top -> {
+					try {
+						return Files.walk(top);
+					}
+					catch (Exception e) {
+						throw ResourceFS.thro(e);
+					}
+				})
+				.filter(Files::isRegularFile)
+				.collect(Collectors.toList());
+			assertEquals((long) files.size(), fileStore.getAttribute("fileCount"));
+			assertEquals(sum(files), fileStore.getAttribute("totalSize"));
+			assertEquals(fileStore.getTotalSpace(), fileStore.getAttribute("totalSize"));
+		}
+	}
+
+	void assertAggregates(Path dir) throws Exception {
+		List<Path> files = Files.walk(dir)
+			.filter(Files::isRegularFile)
+			.collect(Collectors.toList());
+		long newest = 0;
+		for (Path file : files) {
+			newest = Math.max(newest, Files.getLastModifiedTime(file)
+				.toMillis());
+		}
+
+		Map<String, Object> attributes = Files.readAttributes(dir, "resource:*");
+		assertEquals(dir.toString(), (long) files.size(), attributes.get("fileCount"));
+		assertEquals(dir.toString(), sum(files), attributes.get("totalSize"));
+		assertEquals(dir.toString(), FileTime.fromMillis(newest), attributes.get("newestModifiedTime"));
+	}
+
+	static long sum(List<Path> files) throws Exception {
+		long size = 0;
+		for (Path file : files) {
+			size += Files.size(file);
+		}
+		return size;
+	}
+
+	static String hex(String algorithm, byte[] bytes) throws Exception {
+		return ResourceDigests.hex(MessageDigest.getInstance(algorithm)
+			.digest(bytes));
+	}
+
+}
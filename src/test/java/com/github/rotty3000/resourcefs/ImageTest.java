@@ -0,0 +1,217 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImageTest extends BaseTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void packAndMount() throws Exception {
+		packAndMount(false);
+	}
+
+	@Test
+	public void packAndMountCompressed() throws Exception {
+		packAndMount(true);
+	}
+
+	@Test
+	public void packSubtree() throws Exception {
+		File image = tmp.newFile("sub.img");
+
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(source().toURI()
+			.toURL()))) {
+
+			ResourceFS.pack(fileSystem.getPath(source().getPath(), "a"), image.toPath(), false);
+		}
+
+		try (FileSystem fileSystem = createFileSystem("bar", Collections.singletonMap(ResourceFS.IMAGE, image))) {
+			assertEquals("alpha", new String(Files.readAllBytes(fileSystem.getPath(source().getPath(), "a", "b.txt"))));
+			assertTrue(Files.notExists(fileSystem.getPath(source().getPath(), "c.txt")));
+		}
+	}
+
+	@Test
+	public void identicalContentIsStoredAndMappedOnce() throws Exception {
+		File source = tmp.newFolder("duplicates");
+		byte[] bytes = new byte[100_000];
+		new Random(1).nextBytes(bytes);
+		for (String name : Arrays.asList("a/lib.bin", "b/lib.bin", "b/copy.bin")) {
+			Files.createDirectories(source.toPath()
+				.resolve(name)
+				.getParent());
+			Files.write(source.toPath()
+				.resolve(name), bytes);
+		}
+		File image = tmp.newFile("duplicates.img");
+
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(source.toURI()
+			.toURL()))) {
+
+			ResourceFS.pack(fileSystem.getPath(source.getPath()), image.toPath(), false);
+		}
+
+		assertTrue(image.length() < 2 * bytes.length);
+
+		Map<String, Object> env = Collections.singletonMap(ResourceFS.IMAGE, image);
+		try (FileSystem foo = createFileSystem("foo", env)) {
+			long hits = (Long) ((Map<?, ?>) contents(foo).get("mappings")).get("hits");
+
+			try (FileSystem bar = createFileSystem("bar", env)) {
+				// the second mount reuses the first one's mapping
+				Map<?, ?> mappings = (Map<?, ?>) contents(bar).get("mappings");
+				assertEquals(hits + 1, mappings.get("hits"));
+				assertTrue((Long) mappings.get("savedBytes") >= image.length());
+
+				for (String name : Arrays.asList("a/lib.bin", "b/lib.bin", "b/copy.bin")) {
+					assertArrayEquals(bytes, Files.readAllBytes(foo.getPath(source.getPath(), name)));
+					assertArrayEquals(bytes, Files.readAllBytes(bar.getPath(source.getPath(), name)));
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> contents(FileSystem fileSystem) throws Exception {
+		return (Map<String, Object>) fileSystem.getFileStores()
+			.iterator()
+			.next()
+			.getAttribute("contents");
+	}
+
+	void packAndMount(boolean compress) throws Exception {
+		File source = source();
+		File image = tmp.newFile("source.img");
+
+		Map<String, byte[]> expected;
+		Map<String, Long> times;
+
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(source.toURI()
+			.toURL()))) {
+
+			Path root = fileSystem.getPath(source.getPath());
+			expected = contents(root);
+			times = times(root);
+
+			ResourceFS.pack(root.getParent(), image.toPath(), compress);
+		}
+
+		try (FileSystem fileSystem = createFileSystem("bar", Collections.singletonMap(ResourceFS.IMAGE, image.toString()))) {
+			Path root = fileSystem.getPath(source.getPath());
+			Map<String, byte[]> actual = contents(root);
+
+			assertEquals(expected.keySet(), actual.keySet());
+			for (String path : actual.keySet()) {
+				assertArrayEquals(path, expected.get(path), actual.get(path));
+			}
+			assertEquals(times, times(root));
+
+			assertTrue(Files.isDirectory(root.resolve("empty")));
+
+			// channels read straight from the mapping, or inflate when compressed
+			Path big = root.resolve("big.txt");
+			try (SeekableByteChannel channel = Files.newByteChannel(big)) {
+				channel.position(1000);
+				ByteBuffer buffer = ByteBuffer.allocate(10);
+				channel.read(buffer);
+				assertEquals("0020000201", new String(buffer.array()).substring(0, 10));
+			}
+			try (InputStream inputStream = Files.newInputStream(big)) {
+				assertEquals(Files.size(big), inputStream.readAllBytes().length);
+			}
+		}
+
+		if (compress) {
+			assertTrue(image.length() < Files.size(source.toPath()
+				.resolve("big.txt")));
+		}
+	}
+
+	File source() throws Exception {
+		File source = new File(tmp.getRoot(), "source");
+		if (source.exists()) {
+			return source;
+		}
+		Files.createDirectories(source.toPath()
+			.resolve("a"));
+		Files.createDirectories(source.toPath()
+			.resolve("empty"));
+		Files.write(source.toPath()
+			.resolve("a/b.txt"), "alpha".getBytes());
+		Files.write(source.toPath()
+			.resolve("c.txt"), "gamma".getBytes());
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20_000; i++) {
+			sb.append(String.format("%05d", i));
+		}
+		Files.write(source.toPath()
+			.resolve("big.txt"), sb.toString()
+				.getBytes());
+		return source;
+	}
+
+	Map<String, byte[]> contents(Path root) throws Exception {
+		Map<String, byte[]> contents = new TreeMap<>();
+		try (Stream<Path> walk = Files.walk(root)) {
+			for (Path path : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+				byte[] bytes = Files.readAllBytes(path);
+				assertEquals(bytes.length, Files.size(path));
+				contents.put(path.toUri()
+					.getPath(), bytes);
+			}
+		}
+		return contents;
+	}
+
+	Map<String, Long> times(Path root) throws Exception {
+		Map<String, Long> times = new TreeMap<>();
+		try (Stream<Path> walk = Files.walk(root)) {
+			for (Path path : (Iterable<Path>) walk::iterator) {
+				times.put(path.toUri()
+					.getPath(), Files.getLastModifiedTime(path)
+						.toMillis());
+			}
+		}
+		return times;
+	}
+
+}
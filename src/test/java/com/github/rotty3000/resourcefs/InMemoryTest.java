@@ -0,0 +1,94 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class InMemoryTest extends BaseTest {
+
+	@Test
+	public void mountBuffersAlongsideUrls() throws Exception {
+		byte[] heap = "heap content".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer direct = ByteBuffer.allocateDirect(16);
+		direct.put("direct content".getBytes(StandardCharsets.UTF_8))
+			.flip();
+
+		Map<String, ByteBuffer> buffers = new LinkedHashMap<>();
+		buffers.put("/generated/heap.txt", ByteBuffer.wrap(heap));
+		buffers.put("/generated/nested/direct.txt", direct);
+
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(getClass().getResource("jars/resource.txt")));
+		env.put(ResourceFS.BUFFERS, buffers);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Path heapPath = fileSystem.getPath("/generated/heap.txt");
+			Path directPath = fileSystem.getPath("/generated/nested/direct.txt");
+
+			assertTrue(Files.isRegularFile(heapPath));
+			assertTrue(Files.isDirectory(directPath.getParent()));
+			assertEquals(heap.length, Files.size(heapPath));
+			assertEquals(14, Files.size(directPath));
+			assertArrayEquals(heap, Files.readAllBytes(heapPath));
+			assertEquals("direct content", new String(Files.readAllBytes(directPath), StandardCharsets.UTF_8));
+
+			try (SeekableByteChannel channel = Files.newByteChannel(directPath)) {
+				ByteBuffer dst = ByteBuffer.allocate(7);
+				channel.position(7);
+				assertEquals(7, channel.read(dst));
+				assertEquals("content", new String(dst.array(), StandardCharsets.UTF_8));
+				assertEquals(-1, channel.read(dst.clear()));
+			}
+
+			// mounting does not consume the caller's buffers
+			assertEquals(0, direct.position());
+
+			List<Path> files = Files.find(fileSystem.getPath("/generated"), 10, (p, a) -> a.isRegularFile())
+				.collect(Collectors.toList());
+
+			assertEquals(2, files.size());
+		}
+	}
+
+	@Test
+	public void mountOnlyBuffers() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.BUFFERS, Map.of("a/b.txt", ByteBuffer.wrap(new byte[] {1, 2, 3})));
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(fileSystem.getPath("/a/b.txt")));
+		}
+	}
+
+}
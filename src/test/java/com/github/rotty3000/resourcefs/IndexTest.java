@@ -0,0 +1,185 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexTest extends BaseTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	Path		classes;
+	List<URL>	urls;
+
+	@Before
+	public void before() throws Exception {
+		classes = tmp.newFolder("classes")
+			.toPath();
+		Files.createDirectories(classes.resolve("com/acme"));
+		Files.write(classes.resolve("com/acme/A.class"), "A".getBytes(StandardCharsets.UTF_8));
+		Files.createDirectories(classes.resolve("META-INF"));
+		Files.write(classes.resolve("META-INF/MANIFEST.MF"), "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+
+		urls = Arrays.asList(classes.toUri()
+			.toURL(), getClass().getResource("jars/guava-14.0.1.jar"));
+	}
+
+	@Test
+	public void prebuiltIndexReplacesProbing() throws Exception {
+		Path index = tmp.getRoot()
+			.toPath()
+			.resolve("foo.index");
+
+		Map<String, String> expected;
+		try (FileSystem fileSystem = createFileSystem("foo", env(null))) {
+			ResourceFS.index(fileSystem, index, true);
+			expected = describe((ResourceFileSystem) fileSystem);
+		}
+
+		try (FileSystem fileSystem = createFileSystem("foo", env(index))) {
+			ResourceFileSystem resourceFileSystem = (ResourceFileSystem) fileSystem;
+
+			// nothing left to list, everything came from the index
+			assertTrue(resourceFileSystem.fileStore.pending.isEmpty());
+			assertEquals(expected, describe(resourceFileSystem));
+
+			Path manifest = fileSystem.getPath("/META-INF/MANIFEST.MF");
+			assertEquals("Manifest-Version: 1.0\n", new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8));
+			assertEquals(1, ((List<?>) Files.getAttribute(manifest, "resource:shadowed")).size());
+
+			// digests were recorded too
+			ResourceFileAttributes attributes = (ResourceFileAttributes) resourceFileSystem.provider.lookup(
+				fileSystem.getPath("/com/google/common/base/Optional.class")).attributes;
+			assertNotNull(attributes.digests);
+			assertEquals(attributes.digests.digests.get("SHA-256").length, 32);
+		}
+	}
+
+	@Test
+	public void staleIndexIsIgnored() throws Exception {
+		Path index = tmp.getRoot()
+			.toPath()
+			.resolve("foo.index");
+
+		try (FileSystem fileSystem = createFileSystem("foo", env(null))) {
+			ResourceFS.index(fileSystem, index, false);
+		}
+
+		Path file = classes.resolve("com/acme/A.class");
+		Files.write(file, "changed".getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file)
+			.toMillis() + 2000));
+
+		try (FileSystem fileSystem = createFileSystem("foo", env(index))) {
+			assertFalse(((ResourceFileSystem) fileSystem).fileStore.pending.isEmpty());
+			assertEquals("changed", new String(Files.readAllBytes(fileSystem.getPath("/com/acme/A.class")),
+				StandardCharsets.UTF_8));
+		}
+
+		// a different url set does not match either
+		Map<String, Object> env = env(index);
+		env.put(ResourceFS.URLS, urls.subList(1, 2));
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			assertTrue(Files.notExists(fileSystem.getPath("/com/acme/A.class")));
+		}
+	}
+
+	@Test
+	public void indexFromTheClassPath() throws Exception {
+		Path output = tmp.newFolder("output")
+			.toPath();
+
+		ResourceIndex.main(new String[] {
+			output.resolve(ResourceIndex.RESOURCE_PREFIX + "bar" + ResourceIndex.RESOURCE_SUFFIX)
+				.toString(),
+			urls.get(0) + "," + urls.get(1)
+		});
+
+		ClassLoader original = Thread.currentThread()
+			.getContextClassLoader();
+		try (URLClassLoader classLoader = new URLClassLoader(new URL[] {
+			output.toUri()
+				.toURL()
+		}, null)) {
+			Thread.currentThread()
+				.setContextClassLoader(classLoader);
+
+			// not overlaid, so the index records what a plain mount finds
+			try (FileSystem fileSystem = ResourceFS.newFileSystem("bar", urls)) {
+				// mounted on the installed provider, not a private one
+				assertSame(fileSystem, FileSystems.getFileSystem(ResourceFS.build("bar", null)));
+				assertTrue(((ResourceFileSystem) fileSystem).fileStore.pending.isEmpty());
+				assertTrue(Files.isRegularFile(fileSystem.getPath(classes.resolve("com/acme/A.class")
+					.toString())));
+			}
+		}
+		finally {
+			Thread.currentThread()
+				.setContextClassLoader(original);
+		}
+	}
+
+	Map<String, Object> env(Path index) {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, urls);
+		env.put(ResourceFS.OVERLAY, true);
+		if (index != null) {
+			env.put(ResourceFS.INDEX, index);
+		}
+		return env;
+	}
+
+	// path -> source, size, mtime and shadowed sources of everything indexed
+	static Map<String, String> describe(ResourceFileSystem fileSystem) {
+		fileSystem.fileStore.aggregates(fileSystem.basePath);
+
+		Map<String, String> description = new TreeMap<>();
+		fileSystem.fileStore.views.forEach((path, view) -> {
+			description.put(path.toUri()
+				.getPath(),
+				view.attributes.isDirectory() ? "dir"
+					: view.source() + " " + view.size() + " " + view.attributes.lastModifiedTime()
+						.toMillis() + " " + view.shadowed());
+		});
+		return description;
+	}
+
+}
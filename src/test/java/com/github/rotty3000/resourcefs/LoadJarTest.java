@@ -17,10 +17,13 @@
 package com.github.rotty3000.resourcefs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.URI;
@@ -30,12 +33,17 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import org.junit.Ignore;
@@ -140,19 +148,104 @@ public class LoadJarTest extends BaseTest {
 
 			// create a Zip file system from the JAR
 
-			FileSystem jarFS = FileSystems.newFileSystem(jarURI, Collections.emptyMap());
+			try (FileSystem jarFS = FileSystems.newFileSystem(jarURI, Collections.emptyMap())) {
+				assertNotNull(jarFS);
 
-			assertNotNull(jarFS);
+				Path zipRootDir = jarFS.getRootDirectories()
+					.iterator()
+					.next();
 
-			Path zipRootDir = jarFS.getRootDirectories()
-				.iterator()
-				.next();
+				List<Path> zipPaths = Files.find(zipRootDir, 30, (p, a) -> a.isRegularFile())
+					.sorted().collect(Collectors.toList());
 
-			List<Path> zipPaths = Files.find(zipRootDir, 30, (p, a) -> a.isRegularFile())
-				.sorted().collect(Collectors.toList());
+				assertEquals(1597, zipPaths.size());
+			}
+		}
+	}
 
-			assertEquals(1597, zipPaths.size());
+	@Test
+	public void mountJarEntries() throws Exception {
+		// a copy only this test mounts, so that its central directory reads are counted alone
+		Path copy = tmp.newFolder()
+			.toPath()
+			.resolve("guava.jar");
+		Files.copy(Paths.get(getClass().getResource("jars/guava-14.0.1.jar")
+			.toURI()), copy);
+		URL jar = copy.toUri()
+			.toURL();
+		List<URL> urls = new ArrayList<>();
+
+		try (ZipFile zipFile = new ZipFile(new File(jar.toURI()))) {
+			for (ZipEntry entry : Collections.list(zipFile.entries())) {
+				if (!entry.isDirectory()) {
+					urls.add(new URL("jar:" + jar + "!/" + entry.getName()));
+				}
+			}
+
+			long reads = provider().archives.reads.get();
+
+			try (FileSystem fileSystem = createFileSystem("foo", urls)) {
+				// one central directory read for all the entries
+				Map<?, ?> archives = (Map<?, ?>) fileSystem.getFileStores()
+					.iterator()
+					.next()
+					.getAttribute("archives");
+				assertEquals(1, archives.get("held"));
+				assertEquals(reads + 1, archives.get("reads"));
+
+				for (URL url : urls) {
+					Path path = fileSystem.getPath(url.getPath());
+					ZipEntry entry = zipFile.getEntry(url.getPath()
+						.substring(url.getPath()
+							.indexOf("!/") + 2));
+
+					assertEquals(entry.getSize(), Files.size(path));
+					assertEquals(entry.getCrc(), Files.getAttribute(path, "resource:crc"));
+					assertEquals(entry.getLastModifiedTime(), Files.getLastModifiedTime(path));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void failedMountsGiveBackTheirArchives() throws Exception {
+		Path copy = tmp.newFolder()
+			.toPath()
+			.resolve("guava.jar");
+		Files.copy(Paths.get(getClass().getResource("jars/guava-14.0.1.jar")
+			.toURI()), copy);
+		URL jar = copy.toUri()
+			.toURL();
+
+		// the second archive fails while indexing, bundles fail once the store was built
+		Map<String, Object> missing = new HashMap<>();
+		missing.put(ResourceFS.URLS, Arrays.asList(jar, new URL("file:/nonexistent/y.jar")));
+		missing.put(ResourceFS.OVERLAY, true);
+		Map<String, Object> bundles = new HashMap<>();
+		bundles.put(ResourceFS.URLS, Arrays.asList(jar));
+		bundles.put(ResourceFS.OVERLAY, true);
+		bundles.put(ResourceFS.BUNDLES, "not a bundle context");
+
+		for (Map<String, Object> env : Arrays.asList(missing, bundles)) {
+			try {
+				createFileSystem("foo", env).close();
+				fail();
+			}
+			catch (Exception e) {
+				// expected
+			}
+
+			assertEquals(0, provider().archives.references(jar.toExternalForm()));
+			assertFalse(provider().fileSystems.containsKey("foo"));
 		}
 	}
 
+	static ResourceFS provider() {
+		return (ResourceFS) FileSystemProvider.installedProviders()
+			.stream()
+			.filter(provider -> ResourceFS.SCHEME.equals(provider.getScheme()))
+			.findFirst()
+			.get();
+	}
+
 }
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class MirrorTest extends BaseTest {
+
+	Stub	primary;
+	Stub	mirror;
+
+	@Before
+	public void before() throws Exception {
+		primary = new Stub();
+		mirror = new Stub();
+	}
+
+	@After
+	public void after() {
+		primary.stop();
+		mirror.stop();
+	}
+
+	@Test
+	public void slowPrimaryIsHedged() throws Exception {
+		Map<String, Object> env = env();
+		env.put(ResourceFS.HEDGE_DELAY, 50);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			primary.delayMillis = 3000;
+			Path path = fileSystem.getPath("/repo/a.txt");
+			long opened = (Long) SchedulerTest.io(path)
+				.get("opened");
+
+			long start = System.currentTimeMillis();
+			assertEquals("content", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+			assertTrue(System.currentTimeMillis() - start < 2000);
+			assertEquals(1, mirror.hits.get());
+
+			// a permit for each attempt, the loser's given back once it was cut off
+			assertEquals(opened + 2, SchedulerTest.io(path)
+				.get("opened"));
+			SchedulerTest.await(() -> SchedulerTest.io(path)
+				.get("active"), 0);
+
+			Map<String, Map<String, Object>> stats = stats(fileSystem);
+			assertEquals(1L, stats.get(mirror.prefix)
+				.get("wins"));
+			assertEquals(1L, stats.get(primary.prefix)
+				.get("cancelled"));
+		}
+	}
+
+	@Test
+	public void adaptiveDelayFollowsLatency() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", env())) {
+			Path path = fileSystem.getPath("/repo/a.txt");
+
+			for (int i = 0; i < 5; i++) {
+				Files.readAllBytes(path);
+			}
+
+			Map<String, Object> stats = stats(fileSystem).get(primary.prefix);
+			assertTrue((Long) stats.get("wins") > 0);
+			assertTrue((Long) stats.get("hedgeDelayNanos") < ResourceMirrors.MAX_DELAY_NANOS / 4);
+			int hedged = mirror.hits.get();
+
+			// the primary falls behind, the hedge fires after the learned delay
+			primary.delayMillis = 3000;
+			long start = System.currentTimeMillis();
+			assertEquals("content", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+			assertTrue(System.currentTimeMillis() - start < 2000);
+			assertEquals(hedged + 1, mirror.hits.get());
+		}
+	}
+
+	@Test
+	public void failingPrimaryFallsThrough() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", env())) {
+			primary.status = 500;
+
+			assertEquals("content", new String(Files.readAllBytes(fileSystem.getPath("/repo/a.txt")), StandardCharsets.UTF_8));
+			assertEquals(1L, stats(fileSystem).get(primary.prefix)
+				.get("failures"));
+
+			// the failed primary now ranks behind the mirror
+			Files.readAllBytes(fileSystem.getPath("/repo/a.txt"));
+			assertEquals(2, mirror.hits.get());
+		}
+	}
+
+	@Test
+	public void slowArchiveEntryIsHedged() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JarOutputStream jarOutputStream = new JarOutputStream(bytes)) {
+			jarOutputStream.putNextEntry(new JarEntry("a.txt"));
+			jarOutputStream.write("entry".getBytes(StandardCharsets.UTF_8));
+		}
+		primary.body = bytes.toByteArray();
+		mirror.body = bytes.toByteArray();
+
+		Map<String, Object> env = env();
+		env.put(ResourceFS.URLS, Arrays.asList(new URL("jar:" + primary.prefix + "repo/a.jar!/a.txt")));
+		env.put(ResourceFS.OVERLAY, true);
+		env.put(ResourceFS.HEDGE_DELAY, 50);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			primary.delayMillis = 3000;
+
+			long start = System.currentTimeMillis();
+			assertEquals("entry", new String(Files.readAllBytes(fileSystem.getPath("/a.txt")),
+				StandardCharsets.UTF_8));
+			assertTrue(System.currentTimeMillis() - start < 2000);
+			assertEquals(1L, stats(fileSystem).get(primary.prefix)
+				.get("cancelled"));
+		}
+	}
+
+	@Test
+	public void slowArchiveMountIsHedged() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JarOutputStream jarOutputStream = new JarOutputStream(bytes)) {
+			jarOutputStream.putNextEntry(new JarEntry("a.txt"));
+			jarOutputStream.write("entry".getBytes(StandardCharsets.UTF_8));
+		}
+		primary.body = bytes.toByteArray();
+		mirror.body = bytes.toByteArray();
+		primary.delayMillis = 3000;
+
+		Map<String, Object> env = env();
+		env.put(ResourceFS.URLS, Arrays.asList(new URL(primary.prefix + "repo/b.jar")));
+		env.put(ResourceFS.OVERLAY, true);
+		env.put(ResourceFS.HEDGE_DELAY, 50);
+
+		// the central directory comes from the mirror
+		long start = System.currentTimeMillis();
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			assertTrue(System.currentTimeMillis() - start < 2000);
+			assertEquals(1, mirror.hits.get());
+			assertTrue(Files.exists(fileSystem.getPath("/a.txt")));
+		}
+	}
+
+	@Test
+	public void noMirrorAnswersInTime() throws Exception {
+		Map<String, Object> env = env();
+		env.put(ResourceFS.HEDGE_DELAY, 50);
+		env.put(ResourceFS.MIRROR_TIMEOUT, 300);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			primary.delayMillis = 3000;
+			mirror.delayMillis = 3000;
+
+			long start = System.currentTimeMillis();
+			try {
+				Files.readAllBytes(fileSystem.getPath("/repo/a.txt"));
+				fail();
+			}
+			catch (IOException e) {
+				assertTrue(System.currentTimeMillis() - start < 2000);
+			}
+		}
+	}
+
+	@Test
+	public void prefixMatchesOnNameBoundary() throws Exception {
+		assertEquals(0, ResourceMirrors.match("http://host/repo/a.txt", "http://host/repo"));
+		assertEquals(0, ResourceMirrors.match("http://host/repo/a.txt", "http://host/repo/"));
+		assertEquals(4, ResourceMirrors.match("jar:http://host/repo.jar!/a.txt", "http://host/repo.jar"));
+		assertEquals(-1, ResourceMirrors.match("http://host/repo2/a.txt", "http://host/repo"));
+		assertEquals(-1, ResourceMirrors.match("http://other/?u=http://host/repo/a.txt", "http://host/repo"));
+
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(new URL(primary.prefix + "repo2/a.txt")));
+		env.put(ResourceFS.MIRRORS, Collections.singletonMap(primary.prefix + "repo", Arrays.asList(mirror.prefix
+			+ "repo")));
+		env.put(ResourceFS.HEDGE_DELAY, 10);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			primary.delayMillis = 200;
+
+			assertEquals("content", new String(Files.readAllBytes(fileSystem.getPath("/repo2/a.txt")),
+				StandardCharsets.UTF_8));
+			assertEquals(0, mirror.hits.get());
+		}
+	}
+
+	Map<String, Object> env() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(new URL(primary.prefix + "repo/a.txt")));
+		env.put(ResourceFS.MIRRORS, Collections.singletonMap(primary.prefix, Arrays.asList(mirror.prefix)));
+		return env;
+	}
+
+	@SuppressWarnings("unchecked")
+	Map<String, Map<String, Object>> stats(FileSystem fileSystem) throws Exception {
+		return (Map<String, Map<String, Object>>) fileSystem.getFileStores()
+			.iterator()
+			.next()
+			.getAttribute("mirrors");
+	}
+
+	static class Stub {
+
+		final HttpServer		server;
+		final ExecutorService	executor	= Executors.newCachedThreadPool();
+		final String			prefix;
+		final AtomicInteger		hits		= new AtomicInteger();
+		volatile long			delayMillis;
+		volatile int			status		= 200;
+		volatile byte[]			body		= "content".getBytes(StandardCharsets.UTF_8);
+
+		Stub() throws Exception {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.setExecutor(executor);
+			server.createContext("/", exchange -> {
+				try {
+					Thread.sleep(delayMillis);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread()
+						.interrupt();
+				}
+				if (status == 200) {
+					hits.incrementAndGet();
+				}
+				byte[] body = this.body;
+				exchange.getResponseHeaders()
+					.add("Last-Modified", "Thu, 01 Jan 2015 00:00:00 GMT");
+				exchange.sendResponseHeaders(status, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+				catch (Exception e) {
+					// the client hung up on a losing request
+				}
+			});
+			server.start();
+			prefix = "http://127.0.0.1:" + server.getAddress()
+				.getPort() + "/";
+		}
+
+		void stop() {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+
+	}
+
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OverlayTest extends BaseTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void firstUrlWins() throws Exception {
+		URL guava = getClass().getResource("jars/guava-14.0.1.jar");
+		URL jquantlib = getClass().getResource("jars/jquantlib-0.1.2.jar");
+
+		try (FileSystem fileSystem = createFileSystem("foo", overlay(guava, jquantlib))) {
+			Path manifest = fileSystem.getPath("/META-INF/MANIFEST.MF");
+
+			assertEquals("com.google.guava", bsn(manifest));
+
+			Map<String, Object> attributes = Files.readAttributes(manifest, "resource:source,shadowed");
+
+			assertEquals(new URL("jar:" + guava + "!/META-INF/MANIFEST.MF"), attributes.get("source"));
+			assertEquals(
+				Collections.singletonList(new URL("jar:" + jquantlib + "!/META-INF/MANIFEST.MF")),
+				attributes.get("shadowed"));
+		}
+
+		try (FileSystem fileSystem = createFileSystem("foo", overlay(jquantlib, guava))) {
+			Path manifest = fileSystem.getPath("/META-INF/MANIFEST.MF");
+
+			assertEquals(null, bsn(manifest));
+
+			ResourceAttributeView view = Files.getFileAttributeView(manifest, ResourceAttributeView.class);
+
+			assertEquals(new URL("jar:" + jquantlib + "!/META-INF/MANIFEST.MF"), view.source());
+			assertEquals(1, view.shadowed().size());
+		}
+	}
+
+	@Test
+	public void archivesAreExpanded() throws Exception {
+		URL guava = getClass().getResource("jars/guava-14.0.1.jar");
+		URL jquantlib = getClass().getResource("jars/jquantlib-0.1.2.jar");
+
+		try (FileSystem fileSystem = createFileSystem("foo", overlay(guava, jquantlib))) {
+			long guavaClasses = Files.find(fileSystem.getPath("/com"), 30, (p, a) -> a.isRegularFile())
+				.count();
+			long jquantlibFiles = Files.find(fileSystem.getPath("/org"), 30, (p, a) -> a.isRegularFile())
+				.count();
+
+			assertTrue(guavaClasses > 1500);
+			assertTrue(jquantlibFiles > 500);
+			assertTrue(Files.isDirectory(fileSystem.getPath("/com/google/common/collect")));
+			assertTrue(Files.size(fileSystem.getPath("/com/google/common/collect/ImmutableList.class")) > 0);
+		}
+	}
+
+	@Test
+	public void batchRead() throws Exception {
+		URL guava = getClass().getResource("jars/guava-14.0.1.jar");
+		URL jquantlib = getClass().getResource("jars/jquantlib-0.1.2.jar");
+		URL resource = getClass().getResource("jars/resource.txt");
+
+		try (FileSystem fileSystem = createFileSystem("foo", overlay(guava, jquantlib, resource))) {
+			List<Path> paths = Files.find(fileSystem.getPath("/com/google/common/base"), 1, (p, a) -> a.isRegularFile())
+				.collect(Collectors.toList());
+			paths.add(fileSystem.getPath("/META-INF/MANIFEST.MF"));
+			paths.add(fileSystem.getPath(resource.getPath()));
+
+			Map<Path, byte[]> contents = ResourceFS.readAll(paths, 4);
+
+			assertEquals(paths.size(), contents.size());
+
+			for (Path path : paths) {
+				assertArrayEquals(path.toString(), Files.readAllBytes(path), contents.get(path));
+			}
+		}
+	}
+
+	@Test
+	public void batchReadOfOneEntryFromSeveralFileSystems() throws Exception {
+		URL guava = getClass().getResource("jars/guava-14.0.1.jar");
+		String name = "/com/google/common/base/Strings.class";
+
+		try (FileSystem foo = createFileSystem("foo", overlay(guava));
+			FileSystem bar = createFileSystem("bar", overlay(guava))) {
+
+			List<Path> paths = Arrays.asList(foo.getPath(name), bar.getPath(name));
+			Map<Path, byte[]> contents = ResourceFS.readAll(paths, 2);
+
+			assertEquals(2, contents.size());
+			for (Path path : paths) {
+				assertArrayEquals(path.toString(), Files.readAllBytes(path), contents.get(path));
+			}
+		}
+	}
+
+	@Test
+	public void traceAndPrewarm() throws Exception {
+		URL guava = getClass().getResource("jars/guava-14.0.1.jar");
+		Path trace = tmp.getRoot()
+			.toPath()
+			.resolve("traces/guava.trace");
+		List<String> read = Arrays.asList("/com/google/common/collect/ImmutableList.class",
+			"/META-INF/MANIFEST.MF", "/com/google/common/base/Strings.class");
+
+		Map<String, Object> env = overlay(guava);
+		env.put(ResourceFS.TRACE, trace);
+
+		Map<String, byte[]> contents = new HashMap<>();
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			for (String path : read) {
+				contents.put(path, Files.readAllBytes(fileSystem.getPath(path)));
+			}
+			// the second read of a path is not recorded again
+			Files.readAllBytes(fileSystem.getPath(read.get(0)));
+		}
+
+		assertEquals(read, ResourceTrace.read(trace));
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			ResourceFS provider = ((ResourceFileSystem) fileSystem).provider;
+			ResourceFileAttributes attributes = (ResourceFileAttributes) provider.lookup(
+				fileSystem.getPath(read.get(2))).attributes;
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (attributes.prewarmed == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(attributes.prewarmed != null);
+
+			// digesting reads the content without taking it
+			assertEquals(DirectoryTest.hex("SHA-256", contents.get(read.get(2))), ((Map<?, ?>) Files.readAttributes(
+				fileSystem.getPath(read.get(2)), "resource:digest")
+				.get("digest")).get("SHA-256"));
+			assertTrue(attributes.prewarmed != null);
+
+			for (String path : read) {
+				assertArrayEquals(path, contents.get(path), Files.readAllBytes(fileSystem.getPath(path)));
+			}
+			// handed out once
+			assertTrue(attributes.prewarmed == null);
+		}
+	}
+
+	@Test
+	public void prewarmedContentIsSharedAcrossFileSystems() throws Exception {
+		URL guava = getClass().getResource("jars/guava-14.0.1.jar");
+		Path trace = tmp.getRoot()
+			.toPath()
+			.resolve("traces/shared.trace");
+		String read = "/com/google/common/collect/ImmutableList.class";
+
+		Map<String, Object> env = overlay(guava);
+		env.put(ResourceFS.TRACE, trace);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Files.readAllBytes(fileSystem.getPath(read));
+		}
+
+		try (FileSystem foo = createFileSystem("foo", env); FileSystem bar = createFileSystem("bar", env)) {
+			ResourceFileAttributes fooAttributes = prewarmed(foo, read);
+			ResourceFileAttributes barAttributes = prewarmed(bar, read);
+
+			// one body for both
+			assertSame(fooAttributes.prewarmed, barAttributes.prewarmed);
+			Map<?, ?> bodies = (Map<?, ?>) ((Map<?, ?>) Files.getFileStore(foo.getPath(read))
+				.getAttribute("contents")).get("bodies");
+			assertTrue((Long) bodies.get("savedBytes") >= fooAttributes.size);
+
+			assertArrayEquals(Files.readAllBytes(foo.getPath(read)), Files.readAllBytes(bar.getPath(read)));
+		}
+	}
+
+	@Test
+	public void sharedBodyOutlivesItsFirstRead() throws Exception {
+		URL guava = getClass().getResource("jars/guava-14.0.1.jar");
+		Path trace = tmp.getRoot()
+			.toPath()
+			.resolve("traces/held.trace");
+		String read = "/com/google/common/base/Strings.class";
+
+		Map<String, Object> env = overlay(guava);
+		env.put(ResourceFS.TRACE, trace);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Files.readAllBytes(fileSystem.getPath(read));
+		}
+
+		FileSystem foo = createFileSystem("foo", env);
+		try {
+			ResourceFileAttributes fooAttributes = prewarmed(foo, read);
+			byte[] expected = Files.readAllBytes(foo.getPath(read));
+			// handed out, only the file system still holds it
+			assertTrue(fooAttributes.prewarmed == null);
+			assertTrue(((ResourceFileSystem) foo).fileStore.held() > 0);
+
+			for (int i = 0; i < 3; i++) {
+				System.gc();
+			}
+
+			Object identity = ResourceContents.identity(fooAttributes);
+			ResourceContents.Pool bodies = ((ResourceFileSystem) foo).provider.contents.bodies;
+			long hits = bodies.hits.get();
+
+			try (FileSystem bar = createFileSystem("bar", env)) {
+				ResourceFileAttributes barAttributes = prewarmed(bar, read);
+
+				// taken from the pool, not read again
+				assertTrue(bodies.hits.get() > hits);
+				assertSame(bodies.get(identity), barAttributes.prewarmed);
+				assertArrayEquals(expected, Files.readAllBytes(bar.getPath(read)));
+			}
+		}
+		finally {
+			foo.close();
+		}
+
+		assertEquals(0, ((ResourceFileSystem) foo).fileStore.held());
+	}
+
+	ResourceFileAttributes prewarmed(FileSystem fileSystem, String path) throws Exception {
+		ResourceFileAttributes attributes = (ResourceFileAttributes) ((ResourceFileSystem) fileSystem).provider.lookup(
+			fileSystem.getPath(path)).attributes;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (attributes.prewarmed == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(attributes.prewarmed != null);
+		return attributes;
+	}
+
+	@Test
+	public void multiReleaseResolvedAtIndexTime() throws Exception {
+		URL jar = multiReleaseJar(true);
+
+		Map<String, Object> env = overlay(jar);
+		env.put(ResourceFS.MULTI_RELEASE, 11);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			assertEquals("11", read(fileSystem, "/p/A.class"));
+			assertEquals("9", read(fileSystem, "/p/B.class"));
+			assertEquals("base", read(fileSystem, "/p/C.class"));
+			assertEquals("11 only", read(fileSystem, "/p/D.class"));
+			assertEquals(new URL("jar:" + jar + "!/META-INF/versions/11/p/A.class"),
+				Files.getFileAttributeView(fileSystem.getPath("/p/A.class"), ResourceAttributeView.class)
+					.source());
+			// the raw layout is still there
+			assertEquals("17", read(fileSystem, "/META-INF/versions/17/p/A.class"));
+			assertEquals("11", read(fileSystem, "/META-INF/versions/11/p/A.class"));
+		}
+
+		env.put(ResourceFS.MULTI_RELEASE, "9");
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			assertEquals("9", read(fileSystem, "/p/A.class"));
+			assertFalse(Files.exists(fileSystem.getPath("/p/D.class")));
+		}
+
+		try (FileSystem fileSystem = createFileSystem("foo", overlay(jar))) {
+			assertEquals("base", read(fileSystem, "/p/A.class"));
+		}
+
+		// without the manifest attribute the archive is not multi-release
+		env.put(ResourceFS.URLS, Arrays.asList(multiReleaseJar(false)));
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			assertEquals("base", read(fileSystem, "/p/A.class"));
+		}
+	}
+
+	URL multiReleaseJar(boolean multiRelease) throws Exception {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes()
+			.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		if (multiRelease) {
+			manifest.getMainAttributes()
+				.putValue("Multi-Release", "true");
+		}
+
+		Path jar = tmp.newFile((multiRelease ? "mr" : "plain") + ".jar")
+			.toPath();
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+			String[][] entries = {
+				{"p/A.class", "base"}, {"p/B.class", "base"}, {"p/C.class", "base"},
+				{"META-INF/versions/9/p/A.class", "9"}, {"META-INF/versions/9/p/B.class", "9"},
+				{"META-INF/versions/11/p/A.class", "11"}, {"META-INF/versions/11/p/D.class", "11 only"},
+				{"META-INF/versions/17/p/A.class", "17"}
+			};
+			for (String[] entry : entries) {
+				out.putNextEntry(new JarEntry(entry[0]));
+				out.write(entry[1].getBytes(StandardCharsets.UTF_8));
+				out.closeEntry();
+			}
+		}
+		return jar.toUri()
+			.toURL();
+	}
+
+	String read(FileSystem fileSystem, String path) throws Exception {
+		return new String(Files.readAllBytes(fileSystem.getPath(path)), StandardCharsets.UTF_8);
+	}
+
+	Map<String, Object> overlay(URL... urls) {
+		Map<String, Object> env = new HashMap<>();
+		List<URL> list = Arrays.asList(urls);
+		env.put(ResourceFS.URLS, list);
+		env.put(ResourceFS.OVERLAY, true);
+		return env;
+	}
+
+	String bsn(Path manifest) throws Exception {
+		try (InputStream inputStream = Files.newInputStream(manifest)) {
+			return new Manifest(inputStream).getMainAttributes()
+				.getValue("Bundle-SymbolicName");
+		}
+	}
+
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PathTest extends BaseTest {
+
+	@Test
+	public void resolveAndRelativize() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", buffers("a/b/c.txt", "a/d/e.txt"))) {
+			Path a = fileSystem.getPath("/a");
+			Path c = fileSystem.getPath("/a/b/c.txt");
+
+			assertEquals(c, a.resolve("b/c.txt"));
+			assertEquals(c, a.resolve(fileSystem.getPath("b")).resolve(c.getFileName()));
+			assertEquals(c, fileSystem.getPath("/a/b/x").resolveSibling("c.txt"));
+			assertEquals(fileSystem.getPath("/a/d"), a.resolve("b").resolve("/a/d"));
+			assertSame(a, a.resolve(""));
+			assertEquals(c.hashCode(), a.resolve("b/c.txt").hashCode());
+			assertEquals(c.toUri(), a.resolve("b/c.txt").toUri());
+
+			assertEquals(fileSystem.getPath("b/c.txt").toString(), a.relativize(c).toString());
+			assertEquals("../../d/e.txt", String.join("/", ((ResourcePath) c.relativize(fileSystem.getPath("/a/d/e.txt"))).segments));
+			assertEquals(fileSystem.getPath("/a/d/e.txt"), c.resolve(c.relativize(fileSystem.getPath("/a/d/e.txt"))).normalize());
+			assertEquals(0, a.relativize(a).getNameCount());
+
+			assertEquals(fileSystem.getPath("/a/b"), c.getParent());
+			assertEquals(fileSystem.getPath("c.txt"), c.getFileName());
+			assertEquals(fileSystem.getPath("b/c.txt"), c.subpath(1, 3));
+			assertTrue(c.startsWith(a));
+			assertTrue(c.startsWith("/a/b"));
+			assertTrue(c.endsWith("b/c.txt"));
+			assertNull(a.getParent().getFileName());
+		}
+	}
+
+	@Test
+	public void resolveAbsoluteAndRoot() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", buffers("a/b/c.txt"))) {
+			Path root = fileSystem.getPath("/");
+			Path a = fileSystem.getPath("/a");
+			Path c = fileSystem.getPath("/a/b/c.txt");
+
+			assertEquals(0, root.getNameCount());
+			assertTrue(root.isAbsolute());
+			assertEquals(root, a.getRoot());
+			assertEquals(root, a.getParent());
+			assertTrue(Files.isDirectory(root));
+
+			// an absolute path replaces the one resolved against
+			assertSame(c, a.resolve(c));
+			assertEquals(root, c.resolve("/"));
+			assertEquals(c, root.resolve("a/b/c.txt"));
+			assertEquals(c, fileSystem.getPath("/x/y").resolve("/a/b/c.txt"));
+		}
+	}
+
+	@Test
+	public void relativePaths() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", buffers("a/b/c.txt"))) {
+			Path a = fileSystem.getPath("/a");
+			Path c = fileSystem.getPath("/a/b/c.txt");
+			Path relative = fileSystem.getPath("b/c.txt");
+
+			assertFalse(relative.isAbsolute());
+			assertNull(relative.getRoot());
+			assertEquals("b/c.txt", relative.toString());
+			assertEquals(fileSystem.getPath("b"), relative.getParent());
+			assertNull(relative.getFileName()
+				.getParent());
+			assertNotEquals(fileSystem.getPath("/b/c.txt"), relative);
+			assertFalse(c.getFileName()
+				.isAbsolute());
+			assertFalse(c.startsWith(fileSystem.getPath("a")));
+			assertTrue(c.endsWith(relative));
+			assertFalse(c.endsWith(fileSystem.getPath("/b/c.txt")));
+
+			assertEquals(fileSystem.getPath("b/c.txt/d"), relative.resolve("d"));
+			assertEquals(c, fileSystem.getPath("a/b/c.txt")
+				.toAbsolutePath());
+			assertEquals(c.toUri(), fileSystem.getPath("a/b/c.txt")
+				.toUri());
+
+			// relative to the root when used as a file
+			assertTrue(Files.exists(fileSystem.getPath("a/b/c.txt")));
+			assertEquals(c, fileSystem.getPath("a/b/../b/c.txt")
+				.toRealPath());
+		}
+	}
+
+	@Test
+	public void normalizeAndRealPath() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", buffers("a/b/c.txt"))) {
+			Path c = fileSystem.getPath("/a/b/c.txt");
+
+			assertEquals(c, fileSystem.getPath("/a/./b/../b/c.txt").normalize());
+			assertEquals(c, fileSystem.getPath("/../a/b/c.txt").normalize());
+			assertEquals(0, fileSystem.getPath("/a/..").normalize().getNameCount());
+			assertSame(c, c.normalize());
+			assertSame(c, c.toAbsolutePath());
+
+			Path real = fileSystem.getPath("/a/x/../b/./c.txt").toRealPath();
+			assertEquals(c, real);
+			assertSame(Files.getFileAttributeView(c, ResourceAttributeView.class).getPath(), real);
+
+			try {
+				fileSystem.getPath("/a/b/../missing").toRealPath();
+				throw new AssertionError();
+			}
+			catch (NoSuchFileException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void normalizeKeepsClimbingAboveARelativeStart() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", buffers("a/b/c.txt"))) {
+			assertEquals(fileSystem.getPath("../a"), fileSystem.getPath("../a").normalize());
+			assertEquals(fileSystem.getPath("../b"), fileSystem.getPath("a/../../b").normalize());
+			assertEquals(fileSystem.getPath("../../b"), fileSystem.getPath("../a/../../b").normalize());
+			assertEquals("../a", fileSystem.getPath("../a").normalize().toString());
+			// nothing above the root
+			assertEquals(fileSystem.getPath("/a"), fileSystem.getPath("/../a").normalize());
+
+			// climbing out and back in round trips
+			Path c = fileSystem.getPath("/a/b/c.txt");
+			Path other = fileSystem.getPath("/x/y.txt");
+			Path relative = c.relativize(other);
+			assertEquals(fileSystem.getPath("../../../x/y.txt"), relative.normalize());
+			assertEquals(other, c.resolve(relative).normalize());
+		}
+	}
+
+	// resolve against string concatenation, a benchmark left out of the default test run, see
+	// ScalingTest
+	@Test
+	public void benchmarkWalkStyleResolve() throws Exception {
+		assumeTrue(benchmarking());
+
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < 64; i++) {
+			names.add("Name" + i + ".class");
+		}
+
+		try (FileSystem fileSystem = createFileSystem("foo", buffers("a/b/c.txt"))) {
+			String dirName = "/com/acme/product/module/internal/impl";
+			Path dir = fileSystem.getPath(dirName);
+
+			for (int round = 1; round <= 3; round++) {
+				int iterations = 20_000;
+				int sink = 0;
+
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					for (String name : names) {
+						sink += dir.resolve(name)
+							.hashCode();
+					}
+				}
+				long resolve = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					for (String name : names) {
+						sink += fileSystem.getPath(dirName + "/" + name)
+							.hashCode();
+					}
+				}
+				long concat = System.nanoTime() - start;
+
+				long operations = (long) iterations * names.size();
+				System.out.printf(
+					"Path benchmark round %d: resolve %d ns/op, string concat + getPath %d ns/op (%d)%n", round,
+					resolve / operations, concat / operations, sink & 1);
+			}
+		}
+	}
+
+	@Test
+	public void walkStyleResolveMatchesGetPath() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", buffers("a/b/c.txt"))) {
+			String dirName = "/com/acme/product/module/internal/impl";
+			Path dir = fileSystem.getPath(dirName);
+
+			for (int i = 0; i < 64; i++) {
+				String name = "Name" + i + ".class";
+				Path resolved = dir.resolve(name);
+				Path concatenated = fileSystem.getPath(dirName + "/" + name);
+
+				assertEquals(concatenated, resolved);
+				assertEquals(concatenated.hashCode(), resolved.hashCode());
+				assertEquals(concatenated.toString(), resolved.toString());
+				assertEquals(dir, resolved.getParent());
+			}
+		}
+	}
+
+	Map<String, Object> buffers(String... paths) {
+		Map<String, ByteBuffer> buffers = new HashMap<>();
+		for (String path : paths) {
+			buffers.put(path, ByteBuffer.wrap(path.getBytes()));
+		}
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.BUFFERS, buffers);
+		return env;
+	}
+
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PublisherTest extends BaseTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void bytesFollowDemand() throws Exception {
+		byte[] content = new byte[10_000];
+		new Random(7).nextBytes(content);
+		Path local = tmp.newFile("data.bin")
+			.toPath();
+		Files.write(local, content);
+
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(local.toUri()
+			.toURL()))) {
+
+			Collector<ByteBuffer> collector = new Collector<>();
+			ResourceFS.publish(fileSystem.getPath(local.toString()), 1024)
+				.subscribe(collector);
+
+			collector.subscription.request(1);
+			assertEquals(1024, collector.items.poll(5, TimeUnit.SECONDS)
+				.remaining());
+			// nothing more arrives without demand
+			assertNull(collector.items.poll(100, TimeUnit.MILLISECONDS));
+
+			collector.subscription.request(Long.MAX_VALUE);
+			assertTrue(collector.done.await(5, TimeUnit.SECONDS));
+			assertNull(collector.error);
+
+			List<ByteBuffer> rest = collector.items.stream()
+				.collect(Collectors.toList());
+			assertEquals(9, rest.size());
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(content, 0, 1024);
+			for (ByteBuffer chunk : rest) {
+				byte[] bytes = new byte[chunk.remaining()];
+				chunk.get(bytes);
+				out.write(bytes);
+			}
+			assertArrayEquals(content, out.toByteArray());
+		}
+	}
+
+	@Test
+	public void cancelStopsInMemoryChunks() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.BUFFERS, Map.of("a/b.bin", ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7})));
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Collector<ByteBuffer> collector = new Collector<>();
+			ResourceFS.publish(fileSystem.getPath("/a/b.bin"), 3)
+				.subscribe(collector);
+
+			collector.subscription.request(1);
+			ByteBuffer first = collector.items.poll(5, TimeUnit.SECONDS);
+			assertNotNull(first);
+			assertTrue(first.isReadOnly());
+			assertEquals(3, first.remaining());
+
+			collector.subscription.cancel();
+			collector.subscription.request(10);
+			assertNull(collector.items.poll(100, TimeUnit.MILLISECONDS));
+			assertEquals(1, collector.done.getCount());
+		}
+	}
+
+	@Test
+	public void missingPathIsSignalledAsError() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(getClass().getResource("jars/resource.txt")))) {
+			Collector<ByteBuffer> collector = new Collector<>();
+			ResourceFS.publish(fileSystem.getPath("/missing"), 16)
+				.subscribe(collector);
+
+			collector.subscription.request(1);
+			assertTrue(collector.done.await(5, TimeUnit.SECONDS));
+			assertTrue(collector.error instanceof NoSuchFileException);
+		}
+	}
+
+	@Test
+	public void treeFollowsDemandAndDepth() throws Exception {
+		Path root = tmp.newFolder("root")
+			.toPath();
+		for (int i = 0; i < 5; i++) {
+			Path dir = Files.createDirectories(root.resolve("d" + i + "/nested"));
+			Files.write(dir.getParent()
+				.resolve("f.txt"), new byte[] {1});
+			Files.write(dir.resolve("g.txt"), new byte[] {2});
+		}
+
+		try (FileSystem fileSystem = createFileSystem("foo", Arrays.asList(root.toUri()
+			.toURL()))) {
+
+			Path start = fileSystem.getPath(root.toString());
+
+			Collector<ResourceAttributeView> collector = new Collector<>();
+			ResourceFS.publishTree(start, Integer.MAX_VALUE)
+				.subscribe(collector);
+
+			collector.subscription.request(2);
+			assertEquals(start, collector.items.poll(5, TimeUnit.SECONDS)
+				.getPath());
+			assertNotNull(collector.items.poll(5, TimeUnit.SECONDS));
+			assertNull(collector.items.poll(100, TimeUnit.MILLISECONDS));
+
+			collector.subscription.request(Long.MAX_VALUE);
+			assertTrue(collector.done.await(5, TimeUnit.SECONDS));
+			// root, 2 seen, then 5 * (dir, nested, f, g) - 1 still to come
+			assertEquals(19, collector.items.size());
+
+			Collector<ResourceAttributeView> shallow = new Collector<>();
+			ResourceFS.publishTree(start, 1)
+				.subscribe(shallow);
+			shallow.subscription.request(Long.MAX_VALUE);
+			assertTrue(shallow.done.await(5, TimeUnit.SECONDS));
+			assertEquals(6, shallow.items.size());
+			assertFalse(shallow.items.stream()
+				.anyMatch(view -> view.getAttributes()
+					.isRegularFile()));
+		}
+	}
+
+	static class Collector<T> implements Flow.Subscriber<T> {
+
+		final BlockingQueue<T>		items	= new LinkedBlockingQueue<>();
+		final CountDownLatch		done	= new CountDownLatch(1);
+		volatile Flow.Subscription	subscription;
+		volatile Throwable			error;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(T item) {
+			items.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			done.countDown();
+		}
+
+	}
+
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class ResourceClassLoaderTest extends BaseTest {
+
+	@Test
+	public void loadClassesAndResources() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", env())) {
+			ResourceClassLoader classLoader = new ResourceClassLoader(fileSystem, null);
+
+			Class<?> clazz = classLoader.loadClass("com.google.common.collect.ImmutableList");
+
+			assertSame(classLoader, clazz.getClassLoader());
+			assertEquals("com.google.common.collect", clazz.getPackageName());
+			assertEquals(getClass().getResource("jars/guava-14.0.1.jar"), clazz.getProtectionDomain()
+				.getCodeSource()
+				.getLocation());
+
+			assertNotNull(classLoader.getResource("META-INF/MANIFEST.MF"));
+			assertEquals(2, Collections.list(classLoader.getResources("META-INF/MANIFEST.MF"))
+				.size());
+			assertNull(classLoader.getResource("does/not/Exist.class"));
+		}
+	}
+
+	@Test(expected = ClassNotFoundException.class)
+	public void missingPackage() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", env())) {
+			new ResourceClassLoader(fileSystem, null).loadClass("does.not.Exist");
+		}
+	}
+
+	@Test
+	public void loadsWhatURLClassLoaderLoads() throws Exception {
+		List<String> classNames = classNames("jars/guava-14.0.1.jar");
+		classNames.addAll(classNames("jars/jquantlib-0.1.2.jar"));
+
+		URL[] urls = new URL[] {
+			getClass().getResource("jars/guava-14.0.1.jar"), getClass().getResource("jars/jquantlib-0.1.2.jar")
+		};
+
+		int urlLoaded;
+		try (URLClassLoader classLoader = new URLClassLoader(urls, null)) {
+			urlLoaded = loadAll(classLoader, classNames);
+		}
+
+		try (FileSystem fileSystem = createFileSystem("foo", env())) {
+			assertEquals(urlLoaded, loadAll(new ResourceClassLoader(fileSystem, null), classNames));
+		}
+	}
+
+	// the timings of both loaders, a benchmark left out of the default test run, see ScalingTest
+	@Test
+	public void benchmarkAgainstURLClassLoader() throws Exception {
+		assumeTrue(benchmarking());
+
+		List<String> classNames = classNames("jars/guava-14.0.1.jar");
+		classNames.addAll(classNames("jars/jquantlib-0.1.2.jar"));
+
+		URL[] urls = new URL[] {
+			getClass().getResource("jars/guava-14.0.1.jar"), getClass().getResource("jars/jquantlib-0.1.2.jar")
+		};
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			int urlLoaded;
+
+			try (URLClassLoader classLoader = new URLClassLoader(urls, null)) {
+				urlLoaded = loadAll(classLoader, classNames);
+			}
+
+			long urlTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int resourceLoaded;
+
+			try (FileSystem fileSystem = createFileSystem("foo", env())) {
+				resourceLoaded = loadAll(new ResourceClassLoader(fileSystem, null), classNames);
+			}
+
+			long resourceTime = System.nanoTime() - start;
+
+			assertEquals(urlLoaded, resourceLoaded);
+
+			System.out.printf(
+				"ResourceClassLoader benchmark round %d: %d classes, URLClassLoader %d ms, ResourceClassLoader %d ms (including mount)%n",
+				round, urlLoaded, urlTime / 1000000, resourceTime / 1000000);
+		}
+	}
+
+	// heap buffers are read into a pooled buffer rather than defined from their read-only slice
+	@Test
+	public void classFromMemory() throws Exception {
+		String name = Sample.class.getName();
+		String path = name.replace('.', '/') + ".class";
+		byte[] bytes;
+		try (InputStream inputStream = getClass().getResourceAsStream("/" + path)) {
+			bytes = inputStream.readAllBytes();
+		}
+
+		try (FileSystem fileSystem = createFileSystem("foo",
+			Collections.singletonMap(ResourceFS.BUFFERS, Map.of(path, ByteBuffer.wrap(bytes))))) {
+
+			Class<?> clazz = new ResourceClassLoader(fileSystem, null).loadClass(name);
+			assertEquals(name, clazz.getName());
+			assertNotSame(Sample.class, clazz);
+		}
+	}
+
+	// a source that reports no length is read to its end
+	@Test
+	public void classWithoutKnownSize() throws Exception {
+		String name = Sample.class.getName();
+		String path = "/" + name.replace('.', '/') + ".class";
+		byte[] bytes;
+		try (InputStream inputStream = getClass().getResourceAsStream(path)) {
+			bytes = inputStream.readAllBytes();
+		}
+
+		URL url = new URL("unsized", "", -1, path, new URLStreamHandler() {
+
+			@Override
+			protected URLConnection openConnection(URL u) {
+				return new URLConnection(u) {
+
+					@Override
+					public void connect() {
+					}
+
+					@Override
+					public long getContentLengthLong() {
+						return -1;
+					}
+
+					@Override
+					public InputStream getInputStream() {
+						return new ByteArrayInputStream(bytes);
+					}
+				};
+			}
+		});
+
+		try (FileSystem fileSystem = createFileSystem("foo", Collections.singletonMap(ResourceFS.URLS, List.of(url)))) {
+			assertEquals(-1, Files.size(fileSystem.getPath(path)));
+
+			Class<?> clazz = new ResourceClassLoader(fileSystem, null).loadClass(name);
+			assertEquals(name, clazz.getName());
+			assertNotSame(Sample.class, clazz);
+		}
+	}
+
+	public static class Sample {
+	}
+
+	Map<String, Object> env() {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, List.of(getClass().getResource("jars/guava-14.0.1.jar"),
+			getClass().getResource("jars/jquantlib-0.1.2.jar")));
+		env.put(ResourceFS.OVERLAY, true);
+		return env;
+	}
+
+	List<String> classNames(String jar) throws Exception {
+		try (JarFile jarFile = new JarFile(new File(getClass().getResource(jar)
+			.toURI()))) {
+
+			return jarFile.stream()
+				.map(entry -> entry.getName())
+				.filter(name -> name.endsWith(".class") && !name.contains("-"))
+				.map(name -> name.substring(0, name.length() - 6)
+					.replace('/', '.'))
+				.collect(Collectors.toCollection(ArrayList::new));
+		}
+	}
+
+	int loadAll(ClassLoader classLoader, List<String> classNames) {
+		int loaded = 0;
+		for (String className : classNames) {
+			try {
+				classLoader.loadClass(className);
+				loaded++;
+			}
+			catch (ClassNotFoundException | LinkageError e) {
+				// missing optional dependencies fail the same way in both loaders
+			}
+		}
+		return loaded;
+	}
+
+}
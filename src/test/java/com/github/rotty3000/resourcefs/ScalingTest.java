@@ -0,0 +1,374 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// mount/lookup/walk scaling over synthetic URL sets, a benchmark left out of the default test run;
+// run it with
+//   mvn test -Pscaling
+// pick the sizes with
+//   -Dresourcefs.scaling=10000,100000,1000000
+// and append results to a csv for regression tracking with
+//   -Dresourcefs.scaling.report=target/scaling.csv
+public class ScalingTest extends BaseTest {
+
+	static final long	LAST_MODIFIED	= 1_500_000_000_000L;
+
+	// retained heap per indexed node, the synthetic urls included
+	static final long	MAX_BYTES_PER_NODE		= 2048;
+	// retained heap per file system over an already shared archive
+	static final long	MAX_BYTES_PER_FILE_SYSTEM	= 32 * 1024;
+
+	// depth, fan-out
+	static final int[][]	SHAPES			= {
+		{
+			2, 64
+		}, {
+			6, 6
+		}
+	};
+
+	@Before
+	public void before() {
+		assumeTrue(benchmarking());
+	}
+
+	@Test
+	public void scaling() throws Exception {
+		String sizes = System.getProperty("resourcefs.scaling");
+
+		for (String size : sizes.split("\\s*,\\s*")) {
+			for (int[] shape : SHAPES) {
+				Result result = measure(Integer.parseInt(size), shape[0], shape[1]);
+				report(result);
+				assertTrue(result.toString(), result.bytesPerNode() <= MAX_BYTES_PER_NODE);
+			}
+		}
+	}
+
+	Result measure(int files, int depth, int fanOut) throws Exception {
+		Result result = new Result(files, depth, fanOut);
+
+		long baseline = retainedHeap();
+		long[] gcBefore = gc();
+		long allocatedBefore = allocatedBytes();
+
+		List<URL> urls = urls(files, depth, fanOut);
+
+		long start = System.nanoTime();
+		FileSystem fileSystem = createFileSystem("scaling", urls);
+		result.mountNanos = System.nanoTime() - start;
+		result.allocatedBytes = allocatedBytes() - allocatedBefore;
+		urls = null;
+
+		try {
+			ResourceFileStore fileStore = ((ResourceFileSystem) fileSystem).fileStore;
+			result.nodes = fileStore.views.size();
+			result.retainedBytes = retainedHeap() - baseline;
+
+			start = System.nanoTime();
+			long walked;
+			try (Stream<Path> walk = Files.walk(fileSystem.getPath("/scaling"))) {
+				walked = walk.count();
+			}
+			result.walkNanos = System.nanoTime() - start;
+			assertEquals(result.nodes, walked);
+
+			// random hits and misses against the populated tree
+			Random random = new Random(files);
+			int lookups = 100_000;
+			start = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				int n = random.nextInt(files);
+				String path = path(n, depth, fanOut);
+				if ((i & 1) == 0) {
+					assertTrue(path, Files.exists(fileSystem.getPath(path)));
+				}
+				else {
+					assertFalse(Files.exists(fileSystem.getPath(path + ".missing")));
+				}
+			}
+			result.lookupNanos = (System.nanoTime() - start) / lookups;
+
+			long[] gcAfter = gc();
+			result.gcCount = gcAfter[0] - gcBefore[0];
+			result.gcMillis = gcAfter[1] - gcBefore[1];
+		}
+		finally {
+			fileSystem.close();
+		}
+
+		return result;
+	}
+
+	// many file systems over the same jar: one shared central directory, dispatch that does not
+	// depend on how many are open
+	@Test
+	public void fileSystems() throws Exception {
+		int count = Integer.getInteger("resourcefs.scaling.fileSystems", 10000);
+
+		Path jar = Files.createTempFile("scaling", ".jar");
+		try {
+			try (JarOutputStream jarOutputStream = new JarOutputStream(Files.newOutputStream(jar))) {
+				for (int i = 0; i < 16; i++) {
+					jarOutputStream.putNextEntry(new JarEntry("com/acme/d" + (i % 4) + "/f" + i + ".txt"));
+					jarOutputStream.write(("f" + i).getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			URL url = jar.toUri()
+				.toURL();
+			String spec = url.toExternalForm();
+
+			Map<String, Object> env = new HashMap<>();
+			env.put(ResourceFS.URLS, Arrays.asList(url));
+			env.put(ResourceFS.OVERLAY, true);
+
+			long baseline = retainedHeap();
+			List<FileSystem> fileSystems = new ArrayList<>(count);
+			try {
+				for (int i = 0; i < count; i++) {
+					fileSystems.add(createFileSystem("tenant" + i, env));
+				}
+				long retained = (retainedHeap() - baseline) / count;
+				assertTrue(retained + " bytes per file system", retained <= MAX_BYTES_PER_FILE_SYSTEM);
+
+				ResourceFS provider = (ResourceFS) fileSystems.get(0)
+					.provider();
+				assertEquals(count, provider.archives.references(spec));
+
+				// the same path of the last and the first file system opened
+				Path last = fileSystems.get(count - 1)
+					.getPath("/com/acme/d1/f5.txt");
+				Path first = fileSystems.get(0)
+					.getPath("/com/acme/d1/f5.txt");
+				assertTrue(Files.exists(last));
+				assertTrue(Files.exists(first));
+
+				int rounds = 1_000_000;
+				boolean open = true;
+				long allocatedBefore = allocatedBytes();
+				for (int i = 0; i < rounds; i++) {
+					open &= fileSystems.get(i % count)
+						.isOpen();
+				}
+				long isOpenAllocated = allocatedBytes() - allocatedBefore;
+				assertTrue(open);
+				// no allocation per call, whatever is left is the thread's own bookkeeping
+				assertTrue(isOpenAllocated + " bytes allocated", isOpenAllocated < rounds / 100);
+			}
+			finally {
+				for (FileSystem fileSystem : fileSystems) {
+					fileSystem.close();
+				}
+			}
+
+			assertFalse(fileSystems.get(0)
+				.isOpen());
+			assertEquals(0, ((ResourceFS) fileSystems.get(0)
+				.provider()).archives.references(spec));
+		}
+		finally {
+			Files.delete(jar);
+		}
+	}
+
+	static List<URL> urls(int files, int depth, int fanOut) throws Exception {
+		URLStreamHandler handler = new SyntheticHandler();
+		List<URL> urls = new ArrayList<>(files);
+		for (int i = 0; i < files; i++) {
+			urls.add(new URL("synthetic", "", -1, path(i, depth, fanOut), handler));
+		}
+		return urls;
+	}
+
+	// spreads files over depth levels of fanOut directories each
+	static String path(int file, int depth, int fanOut) {
+		StringBuilder sb = new StringBuilder("/scaling");
+		int n = file;
+		for (int level = 0; level < depth; level++) {
+			sb.append("/d")
+				.append(n % fanOut);
+			n /= fanOut;
+		}
+		return sb.append("/f")
+			.append(file)
+			.append(".txt")
+			.toString();
+	}
+
+	static long retainedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean()
+			.getHeapMemoryUsage()
+			.getUsed();
+	}
+
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread()
+				.getId());
+		}
+		return -1;
+	}
+
+	static long[] gc() {
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, bean.getCollectionCount());
+			millis += Math.max(0, bean.getCollectionTime());
+		}
+		return new long[] {
+			count, millis
+		};
+	}
+
+	static void report(Result result) throws Exception {
+		String report = System.getProperty("resourcefs.scaling.report");
+		if (report == null) {
+			return;
+		}
+
+		Path path = Paths.get(report);
+		if (path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+		boolean header = !Files.exists(path);
+
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+			StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+
+			if (header) {
+				writer.println(
+					"timestamp,files,depth,fanOut,nodes,mountMs,allocatedBytes,retainedBytes,bytesPerNode,walkMs,lookupNs,gcCount,gcMs");
+			}
+			writer.println(String.join(",", Arrays.asList(String.valueOf(System.currentTimeMillis()),
+				String.valueOf(result.files), String.valueOf(result.depth), String.valueOf(result.fanOut),
+				String.valueOf(result.nodes), String.valueOf(result.mountNanos / 1_000_000),
+				String.valueOf(result.allocatedBytes), String.valueOf(result.retainedBytes),
+				String.valueOf(result.bytesPerNode()), String.valueOf(result.walkNanos / 1_000_000),
+				String.valueOf(result.lookupNanos), String.valueOf(result.gcCount), String.valueOf(result.gcMillis))));
+		}
+	}
+
+	static class Result {
+
+		final int	files;
+		final int	depth;
+		final int	fanOut;
+		int			nodes;
+		long		mountNanos;
+		long		allocatedBytes;
+		long		retainedBytes;
+		long		walkNanos;
+		long		lookupNanos;
+		long		gcCount;
+		long		gcMillis;
+
+		Result(int files, int depth, int fanOut) {
+			this.files = files;
+			this.depth = depth;
+			this.fanOut = fanOut;
+		}
+
+		long bytesPerNode() {
+			return (nodes == 0) ? 0 : retainedBytes / nodes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+				"scaling %,d files (depth %d, fan-out %d): %,d nodes, mount %,d ms, allocated %,d bytes, retained %,d bytes (%,d per node, urls included), first walk %,d ms, lookup %,d ns, %d gcs in %d ms",
+				files, depth, fanOut, nodes, mountNanos / 1_000_000, allocatedBytes, retainedBytes, bytesPerNode(),
+				walkNanos / 1_000_000, lookupNanos, gcCount, gcMillis);
+		}
+
+	}
+
+	// resources that exist only as URLs, so the index and not I/O is what gets measured
+	static class SyntheticHandler extends URLStreamHandler {
+
+		@Override
+		protected URLConnection openConnection(URL url) {
+			return new URLConnection(url) {
+
+				@Override
+				public void connect() {
+				}
+
+				@Override
+				public long getContentLengthLong() {
+					return url.getPath()
+						.length();
+				}
+
+				@Override
+				public long getLastModified() {
+					return LAST_MODIFIED;
+				}
+
+				@Override
+				public long getDate() {
+					return LAST_MODIFIED;
+				}
+
+				@Override
+				public InputStream getInputStream() {
+					return new ByteArrayInputStream(url.getPath()
+						.getBytes(StandardCharsets.UTF_8));
+				}
+
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,404 @@
+/**
+ * Copyright 2019 Raymond Augé
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rotty3000.resourcefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SchedulerTest extends BaseTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	Path					root;
+	final List<String>		order	= Collections.synchronizedList(new ArrayList<>());
+	final List<Throwable>	failures	= Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void before() throws Exception {
+		root = tmp.getRoot()
+			.toPath();
+		for (int i = 0; i < 4; i++) {
+			Files.write(root.resolve("f" + i + ".txt"), ("f" + i).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void readsQueueAtTheFileSystemLimit() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", env(1))) {
+			Path f0 = path(fileSystem, 0);
+
+			Thread reader;
+			InputStream held = Files.newInputStream(f0);
+			try {
+				reader = read("reader", path(fileSystem, 1));
+				await(() -> io(f0).get("queued"), 1);
+				assertTrue(order.isEmpty());
+			}
+			finally {
+				held.close();
+			}
+
+			reader.join(10000);
+			assertEquals(Arrays.asList("reader"), order);
+			assertTrue(failures.isEmpty());
+
+			Map<String, Object> io = io(f0);
+			assertEquals(0, io.get("active"));
+			assertEquals(0, io.get("queued"));
+			assertEquals(2L, io.get("opened"));
+			assertEquals(1L, io.get("waits"));
+			assertTrue((Long) io.get("waitNanos") > 0);
+		}
+	}
+
+	@Test
+	public void interactiveReadsGoFirst() throws Exception {
+		try (FileSystem fileSystem = createFileSystem("foo", env(1))) {
+			Path f0 = path(fileSystem, 0);
+
+			List<Thread> readers = new ArrayList<>();
+			InputStream held = Files.newInputStream(f0);
+			try {
+				readers.add(read("bulk", path(fileSystem, 1)));
+				await(() -> io(f0).get("queued"), 1);
+				readers.add(read("interactive", path(fileSystem, 2)));
+				await(() -> io(f0).get("queued"), 2);
+			}
+			finally {
+				held.close();
+			}
+
+			for (Thread reader : readers) {
+				reader.join(10000);
+			}
+			assertEquals(Arrays.asList("interactive", "bulk"), order);
+			assertTrue(failures.isEmpty());
+		}
+	}
+
+	@Test
+	public void fileSystemsAreServedInTurn() throws Exception {
+		ResourceScheduler scheduler = new ResourceScheduler("file=1");
+		ResourceScheduler.Tenant foo = scheduler.tenant(0, null, 10000);
+		ResourceScheduler.Tenant bar = scheduler.tenant(0, null, 10000);
+
+		List<Thread> threads = new ArrayList<>();
+		ResourceScheduler.Permit held = scheduler.acquire(foo, "file");
+		try {
+			for (int i = 1; i <= 3; i++) {
+				threads.add(acquire(scheduler, foo, "foo" + i));
+				await(() -> scheduler.stats(foo)
+					.get("queued"), threads.size());
+			}
+			// queued behind all of foo's opens, but served right after the first
+			threads.add(acquire(scheduler, bar, "bar"));
+			await(() -> scheduler.schemeStats()
+				.get("file")
+				.get("queued"), 4);
+		}
+		finally {
+			held.close();
+		}
+
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+		assertEquals(Arrays.asList("foo1", "bar", "foo2", "foo3"), order);
+		assertTrue(failures.isEmpty());
+		assertEquals(1L, scheduler.stats(bar)
+			.get("waits"));
+	}
+
+	@Test
+	public void schemeLimitsOfAFileSystemAreItsOwn() throws Exception {
+		Map<String, Object> env = env(0);
+		env.put(ResourceFS.SCHEME_LIMITS, "file=1");
+
+		try (FileSystem foo = createFileSystem("foo", env); FileSystem bar = createFileSystem("bar", env(0))) {
+			Path f0 = path(foo, 0);
+
+			Thread reader;
+			InputStream held = Files.newInputStream(f0);
+			try {
+				reader = read("foo1", path(foo, 1));
+				await(() -> io(f0).get("queued"), 1);
+
+				// not held up by foo's limit
+				open("bar", path(bar, 0));
+				assertEquals(0L, io(path(bar, 0)).get("waits"));
+			}
+			finally {
+				held.close();
+			}
+
+			reader.join(10000);
+			assertEquals(Arrays.asList("bar", "foo1"), order);
+			assertTrue(failures.isEmpty());
+		}
+	}
+
+	@Test
+	public void closingGivesBackWhatWasHeld() throws Exception {
+		ResourceScheduler scheduler = new ResourceScheduler("file=1");
+		ResourceScheduler.Tenant foo = scheduler.tenant(0, null, 10000);
+		ResourceScheduler.Tenant bar = scheduler.tenant(0, null, 10000);
+
+		// never closed, as by a stream nobody closes
+		scheduler.acquire(foo, "file");
+		Thread fooWaiter = acquire(scheduler, foo, "foo");
+		await(() -> scheduler.stats(foo)
+			.get("queued"), 1);
+		Thread barWaiter = acquire(scheduler, bar, "bar");
+		await(() -> scheduler.stats(bar)
+			.get("queued"), 1);
+
+		scheduler.close(foo);
+
+		fooWaiter.join(10000);
+		barWaiter.join(10000);
+		assertEquals(Arrays.asList("bar"), order);
+		assertEquals(1, failures.size());
+		assertTrue(failures.get(0) instanceof ClosedFileSystemException);
+		assertEquals(0, scheduler.schemeStats()
+			.get("file")
+			.get("active"));
+	}
+
+	@Test
+	public void closingGivesBackWhatWasHeldWhenTheTraceFails() throws Exception {
+		Map<String, Object> env = env(1);
+		// under a regular file, so the trace cannot be written on close
+		env.put(ResourceFS.TRACE, root.resolve("f0.txt/foo.trace"));
+
+		FileSystem fileSystem = createFileSystem("foo", env);
+		ResourceFileSystem resourceFileSystem = (ResourceFileSystem) fileSystem;
+
+		// never closed, as by a stream nobody closes
+		Files.newInputStream(path(fileSystem, 0));
+		Thread reader = read("reader", path(fileSystem, 1));
+		await(() -> resourceFileSystem.provider.scheduler.stats(resourceFileSystem.io)
+			.get("queued"), 1);
+
+		try {
+			fileSystem.close();
+			fail();
+		}
+		catch (IOException e) {
+			// the trace
+		}
+
+		reader.join(10000);
+		assertTrue(order.isEmpty());
+		assertEquals(1, failures.size());
+		assertTrue(failures.get(0) instanceof ClosedFileSystemException);
+		assertEquals(0, resourceFileSystem.provider.scheduler.stats(resourceFileSystem.io)
+			.get("active"));
+	}
+
+	@Test
+	public void waitingIsBounded() throws Exception {
+		Map<String, Object> env = env(1);
+		env.put(ResourceFS.IO_TIMEOUT, 100);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Path f0 = path(fileSystem, 0);
+
+			InputStream held = Files.newInputStream(f0);
+			try {
+				long start = System.nanoTime();
+				try {
+					Files.newInputStream(path(fileSystem, 1))
+						.close();
+					fail();
+				}
+				catch (IOException e) {
+					assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+				}
+				assertEquals(0, io(f0).get("queued"));
+			}
+			finally {
+				held.close();
+			}
+		}
+	}
+
+	@Test
+	public void mountsTakePermits() throws Exception {
+		Path jar = root.resolve("guava.jar");
+		Files.copy(Paths.get(getClass().getResource("jars/guava-14.0.1.jar")
+			.toURI()), jar);
+
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(jar.toUri()
+			.toURL()));
+		env.put(ResourceFS.OVERLAY, true);
+
+		try (FileSystem fileSystem = createFileSystem("foo", env)) {
+			Path manifest = fileSystem.getPath("/META-INF/MANIFEST.MF");
+
+			// the central directory was read under a permit, and given it back
+			Map<String, Object> io = io(manifest);
+			assertEquals(1L, io.get("opened"));
+			assertEquals(0, io.get("active"));
+
+			// bounded even where nothing was configured
+			assertEquals(ResourceScheduler.DEFAULT_SCHEME_LIMIT, schemes(manifest).get("file")
+				.get("limit"));
+		}
+	}
+
+	@Test
+	public void opensWithoutLimitsSkipTheQueue() throws Exception {
+		ResourceScheduler scheduler = new ResourceScheduler(null);
+		ResourceScheduler.Tenant tenant = scheduler.tenant(0, null, 10000);
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch unlock = new CountDownLatch(1);
+
+		Thread holder = new Thread(() -> {
+			synchronized (scheduler) {
+				locked.countDown();
+				try {
+					unlock.await();
+				}
+				catch (InterruptedException e) {
+					// done
+				}
+			}
+		});
+		holder.start();
+		try {
+			assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+			// the monitor is held elsewhere, an open under the scheme's limit with nobody queued does
+			// not need it
+			scheduler.acquire(tenant, "file")
+				.close();
+		}
+		finally {
+			unlock.countDown();
+			holder.join(10000);
+		}
+		assertEquals(0, scheduler.stats(tenant)
+			.get("active"));
+	}
+
+	Map<String, Object> env(int ioLimit) throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(ResourceFS.URLS, Arrays.asList(root.toUri()
+			.toURL()));
+		env.put(ResourceFS.IO_LIMIT, ioLimit);
+		return env;
+	}
+
+	Path path(FileSystem fileSystem, int i) {
+		return fileSystem.getPath(root.resolve("f" + i + ".txt")
+			.toString());
+	}
+
+	// labels starting with bulk read as bulk work
+	Thread read(String label, Path path) {
+		Thread thread = new Thread(() -> {
+			try {
+				if (label.startsWith("bulk")) {
+					ResourceFS.bulk(() -> open(label, path));
+				}
+				else {
+					open(label, path);
+				}
+			}
+			catch (Throwable t) {
+				failures.add(t);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	Thread acquire(ResourceScheduler scheduler, ResourceScheduler.Tenant tenant, String label) {
+		Thread thread = new Thread(() -> {
+			try {
+				ResourceScheduler.Permit permit = scheduler.acquire(tenant, "file");
+				try {
+					order.add(label);
+				}
+				finally {
+					permit.close();
+				}
+			}
+			catch (Throwable t) {
+				failures.add(t);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	Void open(String label, Path path) throws Exception {
+		try (InputStream inputStream = Files.newInputStream(path)) {
+			order.add(label);
+			inputStream.readAllBytes();
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> io(Path path) throws Exception {
+		return (Map<String, Object>) Files.getFileStore(path)
+			.getAttribute("io");
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String, Map<String, Object>> schemes(Path path) throws Exception {
+		return (Map<String, Map<String, Object>>) Files.getFileStore(path)
+			.getAttribute("ioSchemes");
+	}
+
+	static void await(Callable<Object> value, int expected) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!Integer.valueOf(expected)
+			.equals(value.call()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(expected, value.call());
+	}
+
+}